@@ -8,6 +8,8 @@ import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -20,6 +22,9 @@ import java.util.Properties;
 @Setter
 @ConfigurationProperties(value = "aggregator.kafka")
 public class AggregatorKafkaConfig {
+    // действия пользователей читаются в режимах standalone и shard, частичные суммы - только в режиме merger
+    public static final String NOT_MERGER = "!'${aggregator.sharding.mode:standalone}'.equalsIgnoreCase('merger')";
+
     private String bootstrapServer;
     private String keySerializer;
     private String valueSerializer;
@@ -30,8 +35,11 @@ public class AggregatorKafkaConfig {
     private String maxPollIntervalMs;
     private String fetchMaxWaitMs;
     private String enableAutoCommit;
+    private String partialValueDeserializer;
+    private String mergerGroupId;
 
     @Bean
+    @ConditionalOnExpression(NOT_MERGER)
     Consumer<Long, SpecificRecordBase> aggregatorConsumer() {
         Properties config = new Properties();
         config.setProperty(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServer);
@@ -45,6 +53,21 @@ public class AggregatorKafkaConfig {
         return new KafkaConsumer<>(config);
     }
 
+    @Bean
+    @ConditionalOnProperty(name = "aggregator.sharding.mode", havingValue = "merger")
+    Consumer<Long, SpecificRecordBase> mergerConsumer() {
+        Properties config = new Properties();
+        config.setProperty(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServer);
+        config.setProperty(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, keyDeserializer);
+        config.setProperty(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, partialValueDeserializer);
+        config.setProperty(ConsumerConfig.GROUP_ID_CONFIG, mergerGroupId);
+        config.setProperty(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords);
+        config.setProperty(ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG, maxPollIntervalMs);
+        config.setProperty(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, fetchMaxWaitMs);
+        config.setProperty(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, enableAutoCommit);
+        return new KafkaConsumer<>(config);
+    }
+
     @Bean
     Producer<Long, SpecificRecordBase> aggregatorProducer() {
         Properties config = new Properties();
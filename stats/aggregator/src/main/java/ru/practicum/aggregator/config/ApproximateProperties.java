@@ -0,0 +1,18 @@
+package ru.practicum.aggregator.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Getter
+@Setter
+@ConfigurationProperties(value = "aggregator.approximate")
+public class ApproximateProperties {
+    private boolean enabled;
+    private int exactUserLimit = 100_000; // мероприятия с большим числом пользователей считаются приближённо
+    private int signatureSize = 128; // число хеш-функций MinHash
+    private int bands = 32; // число полос LSH, signatureSize должен делиться на bands
+    private double tokenWeight = 0.2; // вес одного токена, веса действий должны быть ему кратны
+    private int maxCandidates = 200; // сколько кандидатов из корзин LSH рассматривать для мероприятия
+    private double sampleRate = 0.01; // доля приближённых оценок, сверяемых с точным значением
+}
@@ -0,0 +1,17 @@
+package ru.practicum.aggregator.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Getter
+@Setter
+@ConfigurationProperties(value = "aggregator.neighbours")
+public class NeighbourProperties {
+    private int maxCount; // сколько самых похожих мероприятий хранить для каждого мероприятия, 0 - без ограничения
+    private int candidateBuffer; // дополнительные места для кандидатов, чьи коэффициенты могут вырасти
+
+    public int capacity() {
+        return maxCount + candidateBuffer;
+    }
+}
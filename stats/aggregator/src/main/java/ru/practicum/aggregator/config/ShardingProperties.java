@@ -0,0 +1,23 @@
+package ru.practicum.aggregator.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Getter
+@Setter
+@ConfigurationProperties(value = "aggregator.sharding")
+public class ShardingProperties {
+    private Mode mode = Mode.STANDALONE;
+    private int shardId; // номер шарда, уникальный среди экземпляров агрегатора
+    private List<Integer> partitions = new ArrayList<>(); // разделы топика действий, закреплённые за шардом
+
+    public enum Mode {
+        STANDALONE, // один экземпляр считает итоговые коэффициенты
+        SHARD, // экземпляр считает частичные суммы для своих разделов
+        MERGER // экземпляр объединяет частичные суммы шардов в итоговые коэффициенты
+    }
+}
@@ -0,0 +1,10 @@
+package ru.practicum.aggregator.deserializer;
+
+import ru.practicum.ewm.stats.avro.SimilarityPartialAvro;
+import ru.practicum.ewm.stats.serialization.AvroDeserializer;
+
+public class SimilarityPartialDeserializer extends AvroDeserializer<SimilarityPartialAvro> {
+    public SimilarityPartialDeserializer() {
+        super(SimilarityPartialAvro.getClassSchema());
+    }
+}
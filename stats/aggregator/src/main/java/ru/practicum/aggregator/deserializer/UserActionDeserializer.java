@@ -1,10 +1,6 @@
 package ru.practicum.aggregator.deserializer;
 
-import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.ewm.stats.serialization.action.UserActionCodecDeserializer;
 
-
-public class UserActionDeserializer extends BaseAvroDeserializer<UserActionAvro> {
-    public UserActionDeserializer() {
-        super(UserActionAvro.getClassSchema());
-    }
-}
\ No newline at end of file
+public class UserActionDeserializer extends UserActionCodecDeserializer {
+}
@@ -1,17 +1,26 @@
 package ru.practicum.aggregator.runner;
 
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
+import ru.practicum.aggregator.config.ShardingProperties;
 import ru.practicum.aggregator.service.AggregationStarter;
+import ru.practicum.aggregator.service.SimilarityMerger;
 
 @Component
 @RequiredArgsConstructor
 public class AggregatorRunner implements CommandLineRunner {
-    private final AggregationStarter aggregator;
+    private final ObjectProvider<AggregationStarter> aggregator; // в каждом режиме создаётся только один из них
+    private final ObjectProvider<SimilarityMerger> merger;
+    private final ShardingProperties sharding;
 
     @Override
     public void run(String... args) {
-        aggregator.start();
+        if (sharding.getMode() == ShardingProperties.Mode.MERGER) {
+            merger.getObject().start();
+        } else {
+            aggregator.getObject().start();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,9 +1,11 @@
 package ru.practicum.aggregator.service;
 
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.avro.specific.SpecificRecordBase;
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
@@ -12,44 +14,82 @@ import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.WakeupException;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Service;
+import ru.practicum.aggregator.config.AggregatorKafkaConfig;
+import ru.practicum.aggregator.config.ShardingProperties;
+import ru.practicum.aggregator.snapshot.SnapshotStore;
+import ru.practicum.aggregator.storage.AggregatorState;
+import ru.practicum.aggregator.storage.LongDoubleHashMap;
+import ru.practicum.aggregator.storage.LongPairDoubleHashMap;
 import ru.practicum.ewm.stats.avro.ActionTypeAvro;
-import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.EventWeightSumAvro;
+import ru.practicum.ewm.stats.avro.PairWeightSumAvro;
+import ru.practicum.ewm.stats.avro.SimilarityPartialAvro;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
+@ConditionalOnExpression(AggregatorKafkaConfig.NOT_MERGER)
 @Slf4j
 @RequiredArgsConstructor
 public class AggregationStarter {
-    private final Consumer<Long, SpecificRecordBase> consumer;
+    private final Consumer<Long, SpecificRecordBase> aggregatorConsumer;
     @Value("${aggregator.kafka.topic-user-actions}")
     private String topicUserActions;
     private final Producer<Long, SpecificRecordBase> producer;
-    @Value("${aggregator.kafka.topic-events-similarity}")
-    private String topicEventsSimilarity;
+    @Value("${aggregator.kafka.topic-similarity-partials}")
+    private String topicSimilarityPartials;
     @Value(value = "${aggregator.kafka.consume-attempt-timeout}")
     private long consumeAttemptTimeout;
     private static final Map<TopicPartition, OffsetAndMetadata> currentOffsets = new HashMap<>();
-
-    Map<Long, Map<Long, Double>> userActionWeightMatrix = new HashMap<>(); // матрица весов действий пользователей
-    Map<Long, Map<Long, Double>> minWeightPairSums = new HashMap<>(); // минимальная сумма для пар мероприятий
-    Map<Long, Double> eventWeightSums = new HashMap<>(); // общие суммы весов каждого мероприятия
-
+    // смещения пачки в обработке: переносятся в currentOffsets только после отправки её результатов
+    private final Map<TopicPartition, OffsetAndMetadata> batchOffsets = new HashMap<>();
+
+    private final AggregatorState state;
+    private final SnapshotStore snapshotStore;
+    private final ShardingProperties sharding;
+    private final SimilarityEmissionFilter emissionFilter;
+    private final ColdEventEvictor coldEventEvictor;
+    private final ApproximationAccuracy approximationAccuracy;
+    private final SimilaritySender similaritySender;
+    private final LongPairDoubleHashMap changedPairs = new LongPairDoubleHashMap(); // пары, изменившиеся за пачку poll (как множество)
+    private final LongDoubleHashMap changedEvents = new LongDoubleHashMap(); // мероприятия, сумма весов которых изменилась за пачку poll
+    @Value("${aggregator.parallel.workers:1}")
+    private int workers;
+    private ExecutorService workerPool; // null в однопоточном режиме
+    private final List<List<UserActionAvro>> workerActions = new ArrayList<>(); // действия пачки по потокам
+    private final List<LongPairDoubleHashMap> workerChangedPairs = new ArrayList<>();
+    private final List<LongDoubleHashMap> workerChangedEvents = new ArrayList<>();
+
+    @PostConstruct
+    void checkSnapshots() { // без снимка шард после перезапуска начал бы суммы с нуля и отправил бы объединению неполные
+        if (sharding.getMode() == ShardingProperties.Mode.SHARD && !snapshotStore.isEnabled()) {
+            throw new IllegalStateException("Режим шарда требует aggregator.snapshot.enabled: true");
+        }
+    }
 
     public void start() {
+        boolean failed = false;
         try {
-            consumer.subscribe(List.of(topicUserActions));
-            Runtime.getRuntime().addShutdownHook(new Thread(consumer::wakeup));
+            currentOffsets.putAll(snapshotStore.load()); // продолжаем с позиций, на которых был сделан снимок
+            coldEventEvictor.init();
+            subscribe();
+            startWorkers();
+            Runtime.getRuntime().addShutdownHook(new Thread(aggregatorConsumer::wakeup));
 
             while (true) {
-                ConsumerRecords<Long, SpecificRecordBase> records = consumer.poll(
+                ConsumerRecords<Long, SpecificRecordBase> records = aggregatorConsumer.poll(
                         Duration.ofMillis(consumeAttemptTimeout));
 
-                int count = 0;
                 for (ConsumerRecord<Long, SpecificRecordBase> record : records) {
 
                     UserActionAvro userAction = (UserActionAvro) record.value();
@@ -57,170 +97,264 @@ public class AggregationStarter {
                             userAction.getUserId(), userAction.getEventId(), userAction.getActionType(),
                             userAction.getTimestamp());
 
-                    manageOffsets(record, count);
-                    count++;
-                    aggregator(userAction);
+                    manageOffsets(record);
+                    state.prepareDecay(userAction.getTimestamp().toEpochMilli());
+                    coldEventEvictor.onAction(userAction.getEventId(), userAction.getTimestamp().toEpochMilli(),
+                            (eventA, eventB) -> {
+                                changedPairs.put(eventA, eventB, 0.0);
+                                changedEvents.put(eventA, 0.0);
+                            });
+                    if (workerPool == null) {
+                        aggregator(userAction, changedPairs, changedEvents);
+                    } else { // действия одного пользователя всегда попадают в один поток
+                        workerActions.get(Math.floorMod(Long.hashCode(userAction.getUserId()), workers)).add(userAction);
+                    }
+                }
+
+                if (workerPool != null && !records.isEmpty()) {
+                    runWorkers();
+                }
+
+                if (!records.isEmpty()) {
+                    sendChanges(); // по каждой паре отправляется только итоговое значение за пачку
+                    currentOffsets.putAll(batchOffsets);
+                    batchOffsets.clear();
+                    if (!emissionFilter.hasPending()) { // иначе смещения фиксируются после выгрузки отложенных пар
+                        commitOffsets();
+                    }
+                }
+
+                if (coldEventEvictor.isSweepDue()) {
+                    coldEventEvictor.sweep();
+                }
+
+                if (emissionFilter.isFlushDue()) {
+                    flushPending();
+                    commitOffsets();
+                }
+
+                if (snapshotStore.isDue()) {
+                    takeSnapshot();
                 }
-                consumer.commitAsync();
             }
         } catch (WakeupException ignored) {
         } catch (Exception e) {
+            failed = true;
             log.error("Произошла ошибка при обработке событий от пользователей ", e);
         } finally {
             try {
-                producer.flush();
-                consumer.commitSync(currentOffsets);
+                if (failed) { // состояние могло быть применено частично: фиксируются только завершённые пачки, без снимка
+                    flushPending(); // отложенные изменения завершённых пачек не должны потеряться
+                    producer.flush();
+                    aggregatorConsumer.commitSync(currentOffsets);
+                } else {
+                    sendChanges();
+                    flushPending();
+                    producer.flush();
+                    aggregatorConsumer.commitSync(currentOffsets);
+                    if (snapshotStore.isEnabled() && snapshotStore.save(currentOffsets)) {
+                        coldEventEvictor.onSnapshotSaved();
+                    }
+                }
             } finally {
+                if (workerPool != null) {
+                    workerPool.shutdownNow();
+                }
                 log.info("Закрытие consumer");
-                consumer.close();
+                aggregatorConsumer.close();
                 log.info("Закрытие producer");
                 producer.close();
             }
         }
     }
 
-    private void manageOffsets(ConsumerRecord<Long, SpecificRecordBase> record, int count) {
-        currentOffsets.put(
-                new TopicPartition(record.topic(), record.partition()),
-                new OffsetAndMetadata(record.offset() + 1)
-        );
-
-        if (count % 10 == 0) {
-            consumer.commitAsync(currentOffsets, (offsets, exception) -> {
-                if (exception != null) {
-                    log.warn("Ошибка при фиксации смещения : {}", offsets, exception);
-                }
-            });
+    private void subscribe() {
+        if (sharding.getMode() == ShardingProperties.Mode.SHARD) { // шард читает только закреплённые за ним разделы
+            List<TopicPartition> partitions = sharding.getPartitions().stream()
+                    .map(partition -> new TopicPartition(topicUserActions, partition))
+                    .toList();
+            aggregatorConsumer.assign(partitions);
+            seekToStateOffsets(partitions);
+            log.info("Шард {} агрегатора читает разделы {}", sharding.getShardId(), partitions);
+            return;
         }
-    }
-
-    private void aggregator(UserActionAvro userAction) {
-        long eventA = userAction.getEventId();
-        long userId = userAction.getUserId();
-        double weight = calculateWeightAction(userAction.getActionType());
-
-        userActionWeightMatrix.putIfAbsent(eventA, new HashMap<>());
-        eventWeightSums.putIfAbsent(eventA, 0.0);
 
-        List<Long> eventIds = userActionWeightMatrix.keySet() // получаем список мероприятий для сравнения, за исключением нашего
-                .stream()
-                .filter(event -> event != eventA)
-                .toList();
+        aggregatorConsumer.subscribe(List.of(topicUserActions), new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            }
 
-        Double currentUserWeight = userActionWeightMatrix.get(eventA).get(userId); // получаем текущий вес пользователя для этого мероприятия ,если есть
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                seekToStateOffsets(partitions);
+            }
+        });
+    }
 
-        if (currentUserWeight != null) { // если пользователь уже участвовал в этом мероприятия
-            if (currentUserWeight >= weight) {
-                return; // вес не увеличился
+    private void seekToStateOffsets(Collection<TopicPartition> partitions) { // состояние в памяти соответствует currentOffsets
+        for (TopicPartition partition : partitions) {
+            OffsetAndMetadata offset = currentOffsets.get(partition);
+            if (offset != null) {
+                aggregatorConsumer.seek(partition, offset);
+                log.info("Чтение раздела {} продолжится со смещения {}", partition, offset.offset());
             }
+        }
+    }
 
-            double oldWeight = currentUserWeight; // меняем вес мероприятия
-            userActionWeightMatrix.get(eventA).put(userId, weight);
-            eventWeightSums.put(eventA, eventWeightSums.get(eventA) - oldWeight + weight);
-        } else {
-            userActionWeightMatrix.get(eventA).put(userId, weight); // пользователь впервые участвует в этом мероприятии
-            eventWeightSums.put(eventA, eventWeightSums.get(eventA) + weight);
+    private void takeSnapshot() { // снимок пишется вместе с зафиксированными смещениями
+        flushPending(); // отложенные пары живут только в памяти, после восстановления из снимка их не вернуть
+        producer.flush();
+        aggregatorConsumer.commitSync(currentOffsets);
+        if (snapshotStore.save(currentOffsets)) {
+            coldEventEvictor.onSnapshotSaved();
         }
+    }
 
+    private void flushPending() {
+        emissionFilter.flushPending(state, this::sendSimilarity);
+        similaritySender.flush();
+    }
 
-        if (!eventIds.isEmpty()) { // считаем все попарные коэффициенты только если есть другие мероприятия
-            calculateAndSendSimilarities(eventA, userId, eventIds);
-        }
+    private void manageOffsets(ConsumerRecord<Long, SpecificRecordBase> record) {
+        batchOffsets.put(
+                new TopicPartition(record.topic(), record.partition()),
+                new OffsetAndMetadata(record.offset() + 1)
+        );
     }
 
-    private void calculateAndSendSimilarities(long eventA, long userId, List<Long> eventIds) {
-        for (Long eventB : eventIds) {
-            if (!userActionWeightMatrix.containsKey(eventB) ||
-                    !userActionWeightMatrix.get(eventA).containsKey(userId) ||
-                    !userActionWeightMatrix.get(eventB).containsKey(userId)) {
-                continue;
+    private void commitOffsets() { // смещения фиксируются только после отправки результатов пачки
+        aggregatorConsumer.commitAsync(currentOffsets, (offsets, exception) -> {
+            if (exception != null) {
+                log.warn("Ошибка при фиксации смещения : {}", offsets, exception);
             }
+        });
+    }
 
-            double sumOfMinWeights = sumOfMinWeightsForEventPair(userActionWeightMatrix, eventA, eventB); // считаем минимальную сумму пар для мероприятия
-
-            putIntoMinWeightPairSums(eventA, eventB, sumOfMinWeights); // записываем минимальную сумму для пар мероприятий
+    private void startWorkers() {
+        if (workers <= 1) {
+            return;
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        workerPool = Executors.newFixedThreadPool(workers,
+                task -> new Thread(task, "aggregator-worker-" + threadNumber.incrementAndGet()));
+        for (int i = 0; i < workers; i++) {
+            workerActions.add(new ArrayList<>());
+            workerChangedPairs.add(new LongPairDoubleHashMap());
+            workerChangedEvents.add(new LongDoubleHashMap());
+        }
+        log.info("Агрегация выполняется в {} потоках", workers);
+    }
 
-            double eventWeightSumA = eventWeightSums.get(eventA);
-            double eventWeightSumB = eventWeightSums.get(eventB);
+    private void runWorkers() throws InterruptedException, ExecutionException {
+        List<Future<?>> futures = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            List<UserActionAvro> actions = workerActions.get(i);
+            LongPairDoubleHashMap pairs = workerChangedPairs.get(i);
+            LongDoubleHashMap events = workerChangedEvents.get(i);
+            futures.add(workerPool.submit(() -> actions.forEach(action -> aggregator(action, pairs, events))));
+        }
 
-            if (eventWeightSumA <= 0 || eventWeightSumB <= 0) { // проверяем, что суммы весов положительные
-                continue;
+        ExecutionException failure = null;
+        for (Future<?> future : futures) { // ждём все потоки, даже если один упал, чтобы никто не менял состояние дальше
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failure = failure == null ? e : failure;
             }
+        }
+        if (failure != null) {
+            throw failure;
+        }
 
-            double sumOfProductsOfSquareRoots = Math.sqrt(eventWeightSumA) * Math.sqrt(eventWeightSumB); // считаем знаменатель
+        for (int i = 0; i < workers; i++) {
+            workerActions.get(i).clear();
+            workerChangedPairs.get(i).forEach((eventA, eventB, ignored) -> changedPairs.put(eventA, eventB, 0.0));
+            workerChangedPairs.get(i).clear();
+            workerChangedEvents.get(i).forEach((eventId, ignored) -> changedEvents.put(eventId, 0.0));
+            workerChangedEvents.get(i).clear();
+        }
+    }
 
-            double coefficient = sumOfProductsOfSquareRoots > 0 ? sumOfMinWeights / sumOfProductsOfSquareRoots : 0.0; // получаем коэф, проверяем деление на ноль
+    private void aggregator(UserActionAvro userAction, LongPairDoubleHashMap pairs, LongDoubleHashMap events) {
+        long eventId = userAction.getEventId();
+        double weight = state.getWeightDecay().scale(calculateWeightAction(userAction.getActionType()),
+                userAction.getTimestamp().toEpochMilli()); // более поздние действия весят больше на общий множитель
 
-            EventSimilarityAvro eventSimilarity = createEventSimilarityAvro(eventA, eventB, coefficient);
-            sendRecord(userId, eventSimilarity);
-            log.info("Коэффициент сходства мероприятий отправлен в сервис Analyzer {}", eventSimilarity);
+        boolean updated = state.updateWeight(userAction.getUserId(), eventId, weight,
+                (eventA, eventB) -> pairs.put(eventA, eventB, 0.0));
+        if (updated) {
+            events.put(eventId, 0.0);
         }
     }
 
-    private static Double calculateWeightAction(ActionTypeAvro action) {
-        return switch (action) {
-            case VIEW -> 0.4;
-            case REGISTER -> 0.8;
-            case LIKE -> 1.0;
-        };
+    private void sendChanges() {
+        state.updateApproximate(changedEvents, changedPairs); // добавляет кандидатов LSH для больших мероприятий
+        state.updateNeighbours(changedPairs); // пары, вытесненные из списков соседей, дальше пропускаются
+        if (sharding.getMode() == ShardingProperties.Mode.SHARD) {
+            sendPartial();
+        } else {
+            state.drainRankChanges((eventA, eventB) -> changedPairs.put(eventA, eventB, 0.0), this::retractSimilarity);
+            changedPairs.forEach((eventA, eventB, ignored) -> {
+                if (!state.isPublished(eventA, eventB)) {
+                    return; // пара не входит в первые maxCount соседей ни одного из мероприятий
+                }
+                double score = state.similarity(eventA, eventB);
+                approximationAccuracy.sample(eventA, eventB, score);
+                if (emissionFilter.shouldEmit(eventA, eventB, score)) { // незначительные изменения откладываются
+                    sendSimilarity(eventA, eventB);
+                }
+            });
+            similaritySender.flush(); // коэффициенты пачки poll уходят одной записью на ключ
+        }
+        changedPairs.clear();
+        changedEvents.clear();
     }
 
-    private double sumOfMinWeightsForEventPair(Map<Long, Map<Long, Double>> userActionWeightMatrix, long eventA,
-                                               long eventB) {
-        Map<Long, Double> userWeightEventA = userActionWeightMatrix.get(eventA);
-        Map<Long, Double> userWeightEventB = userActionWeightMatrix.get(eventB);
-
-        if (userWeightEventA == null || userWeightEventB == null || userWeightEventA.isEmpty() ||
-                userWeightEventB.isEmpty()) {
-            return 0.0;
+    private void sendPartial() { // шард отправляет свои частичные суммы на объединение
+        if (changedEvents.isEmpty()) {
+            return;
         }
 
-        Set<Long> setUserEventA = new HashSet<>(userWeightEventA.keySet()); // поиск общих пользователей двух событий
-        Set<Long> setUserEventB = new HashSet<>(userWeightEventB.keySet());
-
-        setUserEventA.retainAll(setUserEventB); // пересечение общих пользователей
-
-        if (setUserEventA.isEmpty()) { // если нет общих пользователей
-            return 0.0;
-        }
+        List<EventWeightSumAvro> eventWeightSums = new ArrayList<>(changedEvents.size());
+        changedEvents.forEach((eventId, ignored) -> eventWeightSums.add(EventWeightSumAvro.newBuilder()
+                .setEventId(eventId)
+                .setWeightSum(state.getEventWeightSums().get(eventId, 0.0))
+                .build()));
+
+        List<PairWeightSumAvro> pairWeightSums = new ArrayList<>(changedPairs.size());
+        changedPairs.forEach((eventA, eventB, ignored) -> pairWeightSums.add(PairWeightSumAvro.newBuilder()
+                .setEventA(eventA)
+                .setEventB(eventB)
+                .setMinWeightSum(state.getMinWeightPairSums().get(eventA, eventB, 0.0))
+                .build()));
+
+        SimilarityPartialAvro partial = SimilarityPartialAvro.newBuilder()
+                .setShard(sharding.getShardId())
+                .setEventWeightSums(eventWeightSums)
+                .setPairWeightSums(pairWeightSums)
+                .setTimestamp(Instant.now())
+                .build();
 
-        return setUserEventA.stream()
-                .mapToDouble(user -> Math.min(userWeightEventA.get(user), userWeightEventB.get(user)))
-                .sum();
+        producer.send(new ProducerRecord<>(topicSimilarityPartials, null, Instant.now().toEpochMilli(),
+                (long) sharding.getShardId(), partial));
+        log.debug("Частичные суммы шарда {} отправлены на объединение: мероприятий {}, пар {}",
+                sharding.getShardId(), eventWeightSums.size(), pairWeightSums.size());
     }
 
-    private void putIntoMinWeightPairSums(long eventA, long eventB, double sum) {
-        long first = Math.min(eventA, eventB);
-        long second = Math.max(eventA, eventB);
-
-        minWeightPairSums
-                .computeIfAbsent(first, e -> new HashMap<>())
-                .put(second, sum);
+    private void sendSimilarity(long eventA, long eventB) {
+        similaritySender.send(eventA, eventB, state.similarity(eventA, eventB));
     }
 
-    private EventSimilarityAvro createEventSimilarityAvro(long eventA, long eventB, double coefficient) {
-        long first = Math.min(eventA, eventB);
-        long second = Math.max(eventA, eventB);
-
-        return EventSimilarityAvro.newBuilder()
-                .setEventA(first)
-                .setEventB(second)
-                .setScore(coefficient)
-                .setTimestamp(Instant.now())
-                .build();
+    private void retractSimilarity(long eventA, long eventB) { // нулевой коэффициент: Analyzer удаляет пару
+        emissionFilter.forget(eventA, eventB);
+        similaritySender.send(eventA, eventB, 0.0);
     }
 
-    private void sendRecord(long userId, EventSimilarityAvro eventSimilarity) {
-        if (eventSimilarity == null) {
-            log.warn("Попытка отправить null EventSimilarityAvro");
-            return;
-        }
-        ProducerRecord<Long, SpecificRecordBase> producerRecord = new ProducerRecord<>(topicEventsSimilarity,
-                null,
-                Instant.now().toEpochMilli(),
-                userId,
-                eventSimilarity
-        );
-        producer.send(producerRecord);
+    private static Double calculateWeightAction(ActionTypeAvro action) {
+        return switch (action) {
+            case VIEW -> 0.4;
+            case REGISTER -> 0.8;
+            case LIKE -> 1.0;
+        };
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,36 @@
+package ru.practicum.aggregator.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import ru.practicum.aggregator.config.ApproximateProperties;
+import ru.practicum.aggregator.storage.AggregatorState;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Сверяет часть приближённых коэффициентов с точными значениями, посчитанными по пересечению пользователей.
+ * Распределение абсолютной ошибки публикуется в метрике aggregator.similarity.approximation.error.
+ */
+@Component
+public class ApproximationAccuracy {
+    private final AggregatorState state;
+    private final double sampleRate;
+    private final DistributionSummary errors;
+
+    public ApproximationAccuracy(AggregatorState state, ApproximateProperties properties, MeterRegistry meterRegistry) {
+        this.state = state;
+        this.sampleRate = properties.getSampleRate();
+        this.errors = DistributionSummary.builder("aggregator.similarity.approximation.error")
+                .description("Абсолютная ошибка приближённого коэффициента сходства")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+    }
+
+    public void sample(long eventA, long eventB, double score) {
+        if (!state.isApproximate(eventA, eventB) || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        errors.record(Math.abs(score - state.exactSimilarity(eventA, eventB)));
+    }
+}
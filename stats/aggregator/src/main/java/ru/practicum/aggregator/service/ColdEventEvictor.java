@@ -0,0 +1,142 @@
+package ru.practicum.aggregator.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.aggregator.snapshot.EventArchive;
+import ru.practicum.aggregator.storage.AggregatorState;
+import ru.practicum.aggregator.storage.LongDoubleHashMap;
+
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * Вытесняет из состояния агрегатора мероприятия без действий дольше inactivity-ms и возвращает их
+ * из архива при новом действии. Время отсчитывается по меткам действий, поэтому повторное чтение
+ * топика с начала не вытесняет мероприятия раньше срока.
+ * Архив восстановленного мероприятия удаляется только после сохранения снимка, в котором оно уже есть.
+ * Проход выполняется в потоке poll, поэтому за раз архивируется не больше sweep-batch-size мероприятий
+ * и не дольше sweep-time-budget-ms; незавершённый проход продолжается в следующем цикле poll.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ColdEventEvictor {
+    private final AggregatorState state;
+    private final EventArchive archive;
+    private final LongDoubleHashMap lastActivity = new LongDoubleHashMap(); // время последнего действия, мс (double точен до 2^53)
+    private LongDoubleHashMap archivedEvents = new LongDoubleHashMap(); // вытесненные мероприятия (как множество)
+    private final LongDoubleHashMap restoredEvents = new LongDoubleHashMap(); // восстановленные, чей архив ждёт снимка
+    private long clock; // наибольшая метка времени среди полученных действий
+
+    @Value("${aggregator.eviction.enabled:false}")
+    private boolean enabled;
+    @Value("${aggregator.eviction.inactivity-ms:2592000000}")
+    private long inactivityMs;
+    @Value("${aggregator.eviction.sweep-interval-ms:600000}")
+    private long sweepIntervalMs;
+    @Value("${aggregator.eviction.sweep-batch-size:1000}")
+    private int sweepBatchSize;
+    @Value("${aggregator.eviction.sweep-time-budget-ms:1000}")
+    private long sweepTimeBudgetMs;
+    @Value("${aggregator.snapshot.enabled:false}")
+    private boolean snapshotsEnabled;
+    private long lastSweepAt = System.currentTimeMillis();
+    private boolean sweepUnfinished; // прошлый проход остановлен по ограничению
+
+    public void init() { // вызывается после восстановления снимка
+        if (!enabled) {
+            return;
+        }
+        archivedEvents = archive.listArchived();
+        LongDoubleHashMap stale = new LongDoubleHashMap();
+        archivedEvents.forEach((eventId, ignored) -> {
+            if (state.getUserActionWeightMatrix().containsKey(eventId)) { // снимок до вытеснения или после восстановления важнее архива
+                stale.put(eventId, 0.0);
+            }
+        });
+        stale.forEach((eventId, ignored) -> {
+            archivedEvents.remove(eventId, 0.0);
+            archive.delete(eventId);
+        });
+        log.info("В архиве {} вытесненных мероприятий", archivedEvents.size());
+    }
+
+    public void onAction(long eventId, long timestamp, AggregatorState.PairConsumer consumer) {
+        if (!enabled) {
+            return;
+        }
+        clock = Math.max(clock, timestamp);
+        lastActivity.put(eventId, Math.max(lastActivity.get(eventId, timestamp), timestamp));
+
+        if (archivedEvents.containsKey(eventId)) { // мероприятие снова активно, возвращаем его до обновления весов
+            EventArchive.ArchivedEvent archived = archive.load(eventId);
+            LongDoubleHashMap userWeights = archived.getUserWeights();
+            userWeights.scaleValues(state.getWeightDecay().factorFrom(archived.getLambda(), // к текущим затуханию и эпохе
+                    archived.getReferenceEpoch(), archived.getSavedAt()));
+            state.restoreEvent(eventId, userWeights, consumer);
+            archivedEvents.remove(eventId, 0.0);
+            if (snapshotsEnabled) { // без снимков архив остаётся единственной копией на диске
+                restoredEvents.put(eventId, 0.0);
+            }
+            log.info("Мероприятие {} восстановлено из архива", eventId);
+        }
+    }
+
+    public void onSnapshotSaved() { // восстановленные мероприятия теперь есть в снимке, их архив больше не нужен
+        if (restoredEvents.isEmpty()) {
+            return;
+        }
+        restoredEvents.forEach((eventId, ignored) -> archive.delete(eventId));
+        log.info("Удалены архивы мероприятий, сохранённых в снимке: {}", restoredEvents.size());
+        restoredEvents.clear();
+    }
+
+    public boolean isSweepDue() {
+        return enabled && (sweepUnfinished || System.currentTimeMillis() - lastSweepAt >= sweepIntervalMs);
+    }
+
+    public void sweep() {
+        lastSweepAt = System.currentTimeMillis();
+        long startedAt = lastSweepAt;
+        sweepUnfinished = false;
+        if (clock == 0) { // действий ещё не было, отсчитывать бездействие не от чего
+            return;
+        }
+
+        LongDoubleHashMap evicted = new LongDoubleHashMap();
+        for (Map.Entry<Long, LongDoubleHashMap> event : state.getUserActionWeightMatrix().entrySet()) {
+            if (!lastActivity.containsKey(event.getKey())) { // после рестарта отсчёт идёт заново
+                lastActivity.put(event.getKey(), clock);
+            }
+            long lastActionAt = (long) lastActivity.get(event.getKey(), clock);
+            if (clock - lastActionAt > inactivityMs) {
+                try {
+                    archive.save(event.getKey(), state.getWeightDecay(), event.getValue());
+                    evicted.put(event.getKey(), 0.0);
+                } catch (UncheckedIOException e) {
+                    log.error("Мероприятие {} оставлено в памяти", event.getKey(), e);
+                }
+                // каждый архив записывается на диск с fsync, проход не должен задерживать poll дольше бюджета
+                if (evicted.size() >= sweepBatchSize || System.currentTimeMillis() - startedAt >= sweepTimeBudgetMs) {
+                    sweepUnfinished = true;
+                    break;
+                }
+            }
+        }
+        if (evicted.isEmpty()) {
+            return;
+        }
+
+        state.evictEvents(evicted);
+        evicted.forEach((eventId, ignored) -> {
+            lastActivity.remove(eventId, 0.0);
+            restoredEvents.remove(eventId, 0.0); // архив перезаписан, удалять его после снимка нельзя
+            archivedEvents.put(eventId, 0.0);
+        });
+        log.info("Вытеснено в архив мероприятий: {}, в памяти осталось {}, за {} мс{}", evicted.size(),
+                state.getUserActionWeightMatrix().size(), System.currentTimeMillis() - startedAt,
+                sweepUnfinished ? ", проход продолжится в следующем цикле" : "");
+    }
+}
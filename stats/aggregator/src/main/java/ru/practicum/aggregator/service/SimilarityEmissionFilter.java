@@ -0,0 +1,113 @@
+package ru.practicum.aggregator.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.aggregator.storage.AggregatorState;
+import ru.practicum.aggregator.storage.LongDoubleHashMap;
+import ru.practicum.aggregator.storage.LongPairDoubleHashMap;
+
+/**
+ * Отсекает незначительные изменения коэффициентов сходства.
+ * Изменение отправляется, если оно превышает абсолютный или относительный порог относительно
+ * последнего отправленного значения; иначе пара откладывается и проверяется при следующем изменении,
+ * а периодическая выгрузка отправляет все отложенные пары, чтобы значения не расходились неограниченно.
+ * Пары, удалённые из состояния агрегатора или отозванные из Analyzer, забываются; при нулевых порогах фильтр ничего не хранит.
+ */
+@Component
+public class SimilarityEmissionFilter implements AggregatorState.DropListener {
+    private final LongPairDoubleHashMap lastEmittedScores = new LongPairDoubleHashMap(); // последние отправленные коэффициенты
+    private final LongPairDoubleHashMap pendingPairs = new LongPairDoubleHashMap(); // отложенные пары (как множество)
+    private final Counter emittedCounter;
+    private final Counter suppressedCounter;
+    private final Counter flushedCounter;
+
+    @Value("${aggregator.emission.absolute-threshold:0.0}")
+    private double absoluteThreshold;
+    @Value("${aggregator.emission.relative-threshold:0.0}")
+    private double relativeThreshold;
+    @Value("${aggregator.emission.flush-interval-ms:60000}")
+    private long flushIntervalMs;
+    private long lastFlushAt = System.currentTimeMillis();
+
+    public SimilarityEmissionFilter(MeterRegistry meterRegistry, AggregatorState state) {
+        emittedCounter = meterRegistry.counter("aggregator.similarity.updates", "result", "emitted");
+        suppressedCounter = meterRegistry.counter("aggregator.similarity.updates", "result", "suppressed");
+        flushedCounter = meterRegistry.counter("aggregator.similarity.updates", "result", "flushed");
+        state.addDropListener(this);
+    }
+
+    public boolean isEnabled() {
+        return absoluteThreshold > 0 || relativeThreshold > 0;
+    }
+
+    public boolean shouldEmit(long eventA, long eventB, double score) {
+        if (!isEnabled()) { // отправляется каждое изменение, помнить прошлые значения не нужно
+            emittedCounter.increment();
+            return true;
+        }
+        double lastScore = lastEmittedScores.get(eventA, eventB, Double.NaN);
+        double change = Math.abs(score - lastScore);
+
+        if (Double.isNaN(lastScore) || change > absoluteThreshold || change > relativeThreshold * Math.abs(lastScore)) {
+            lastEmittedScores.put(eventA, eventB, score);
+            pendingPairs.remove(eventA, eventB, 0.0);
+            emittedCounter.increment();
+            return true;
+        }
+
+        pendingPairs.put(eventA, eventB, 0.0); // отправим при следующем значимом изменении или при выгрузке
+        suppressedCounter.increment();
+        return false;
+    }
+
+    public boolean hasPending() { // есть отложенные изменения, ещё не отправленные в Analyzer
+        return !pendingPairs.isEmpty();
+    }
+
+    public boolean isFlushDue() {
+        return !pendingPairs.isEmpty() && System.currentTimeMillis() - lastFlushAt >= flushIntervalMs;
+    }
+
+    public void flushPending(AggregatorState state, AggregatorState.PairConsumer consumer) { // отправляет текущие значения отложенных пар
+        lastFlushAt = System.currentTimeMillis();
+        pendingPairs.forEach((eventA, eventB, ignored) -> {
+            if (!state.hasPair(eventA, eventB)) { // пара больше не хранится агрегатором
+                lastEmittedScores.remove(eventA, eventB, 0.0);
+                return;
+            }
+            if (!state.isPublished(eventA, eventB)) { // пара ушла в буфер кандидатов
+                return;
+            }
+            lastEmittedScores.put(eventA, eventB, state.similarity(eventA, eventB));
+            flushedCounter.increment();
+            consumer.accept(eventA, eventB);
+        });
+        pendingPairs.clear();
+    }
+
+    public void forget(long eventA, long eventB) { // при возвращении пара отправится без сравнения с порогами
+        lastEmittedScores.remove(eventA, eventB, 0.0);
+        pendingPairs.remove(eventA, eventB, 0.0);
+    }
+
+    @Override
+    public void pairDropped(long eventA, long eventB) {
+        forget(eventA, eventB);
+    }
+
+    @Override
+    public void eventsDropped(LongDoubleHashMap events) { // полный проход, вытеснение выполняется редко
+        if (lastEmittedScores.isEmpty()) {
+            return;
+        }
+        LongPairDoubleHashMap dropped = new LongPairDoubleHashMap();
+        lastEmittedScores.forEach((eventA, eventB, ignored) -> {
+            if (events.containsKey(eventA) || events.containsKey(eventB)) {
+                dropped.put(eventA, eventB, 0.0);
+            }
+        });
+        dropped.forEach((eventA, eventB, ignored) -> pairDropped(eventA, eventB));
+    }
+}
@@ -0,0 +1,217 @@
+package ru.practicum.aggregator.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import ru.practicum.aggregator.snapshot.MergerSnapshotStore;
+import ru.practicum.aggregator.storage.AggregatorState;
+import ru.practicum.aggregator.storage.LongDoubleHashMap;
+import ru.practicum.aggregator.storage.LongPairDoubleHashMap;
+import ru.practicum.ewm.stats.avro.EventWeightSumAvro;
+import ru.practicum.ewm.stats.avro.PairWeightSumAvro;
+import ru.practicum.ewm.stats.avro.SimilarityPartialAvro;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Объединяет частичные суммы шардов агрегатора в итоговые коэффициенты сходства.
+ * Вклад пользователя в сумму минимальных весов пары аддитивен, поэтому итоговая сумма равна сумме по шардам.
+ * Шард присылает только изменившиеся суммы, поэтому последние суммы каждого шарда хранятся в снимке вместе
+ * со смещениями; после рестарта чтение продолжается со смещений снимка, а без снимка - с начала топика.
+ */
+@Service
+@ConditionalOnProperty(name = "aggregator.sharding.mode", havingValue = "merger")
+@Slf4j
+@RequiredArgsConstructor
+public class SimilarityMerger {
+    private final Consumer<Long, SpecificRecordBase> mergerConsumer;
+    private final Producer<Long, SpecificRecordBase> producer;
+    @Value("${aggregator.kafka.topic-similarity-partials}")
+    private String topicSimilarityPartials;
+    @Value(value = "${aggregator.kafka.consume-attempt-timeout}")
+    private long consumeAttemptTimeout;
+    private static final Map<TopicPartition, OffsetAndMetadata> currentOffsets = new HashMap<>();
+
+    private final AggregatorState state; // итоговые суммы по всем шардам
+    private final MergerSnapshotStore snapshotStore;
+    private final SimilarityEmissionFilter emissionFilter;
+    private final SimilaritySender similaritySender;
+    private final Map<Integer, LongDoubleHashMap> shardEventWeightSums = new HashMap<>(); // последние суммы весов мероприятий от каждого шарда
+    private final Map<Integer, LongPairDoubleHashMap> shardMinWeightPairSums = new HashMap<>(); // последние суммы минимальных весов пар от каждого шарда
+    private final LongPairDoubleHashMap changedPairs = new LongPairDoubleHashMap(); // пары, изменившиеся за пачку poll (как множество)
+
+    public void start() {
+        boolean failed = false;
+        try {
+            restore();
+            mergerConsumer.subscribe(List.of(topicSimilarityPartials), new ConsumerRebalanceListener() {
+                @Override
+                public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                }
+
+                @Override
+                public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                    seekToStateOffsets(partitions);
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread(mergerConsumer::wakeup));
+
+            while (true) {
+                ConsumerRecords<Long, SpecificRecordBase> records = mergerConsumer.poll(
+                        Duration.ofMillis(consumeAttemptTimeout));
+
+                for (ConsumerRecord<Long, SpecificRecordBase> record : records) {
+                    SimilarityPartialAvro partial = (SimilarityPartialAvro) record.value();
+                    log.debug("Получены частичные суммы шарда {}: мероприятий {}, пар {}", partial.getShard(),
+                            partial.getEventWeightSums().size(), partial.getPairWeightSums().size());
+
+                    merge(partial);
+                    manageOffsets(record); // смещение учитывается только после применения сумм
+                }
+
+                if (!records.isEmpty()) {
+                    sendChanges(); // по каждой паре отправляется только итоговое значение за пачку
+                    if (!emissionFilter.hasPending()) { // иначе смещения фиксируются после выгрузки отложенных пар
+                        commitOffsets();
+                    }
+                }
+
+                if (emissionFilter.isFlushDue()) {
+                    flushPending();
+                    commitOffsets();
+                }
+
+                if (snapshotStore.isDue()) {
+                    takeSnapshot();
+                }
+            }
+        } catch (WakeupException ignored) {
+        } catch (Exception e) {
+            failed = true;
+            log.error("Произошла ошибка при объединении частичных сумм шардов ", e);
+        } finally {
+            try {
+                if (!failed) { // после ошибки чтение продолжится со смещений последнего снимка
+                    sendChanges();
+                    takeSnapshot();
+                }
+            } finally {
+                log.info("Закрытие consumer");
+                mergerConsumer.close();
+                log.info("Закрытие producer");
+                producer.close();
+            }
+        }
+    }
+
+    private void restore() { // итоговые суммы складываются из последних сумм шардов
+        currentOffsets.putAll(snapshotStore.load(shardEventWeightSums, shardMinWeightPairSums));
+        shardEventWeightSums.values().forEach(eventWeightSums -> eventWeightSums.forEach(
+                (eventId, sum) -> state.getEventWeightSums().addTo(eventId, sum)));
+        shardMinWeightPairSums.values().forEach(minWeightPairSums -> minWeightPairSums.forEach(
+                (eventA, eventB, sum) -> state.getMinWeightPairSums().addTo(eventA, eventB, sum)));
+        if (!snapshotStore.isEnabled()) {
+            log.warn("Снимки объединителя выключены: после рестарта топик {} читается с начала, " +
+                    "его записи не должны удаляться по сроку хранения или сжатию", topicSimilarityPartials);
+        }
+    }
+
+    private void seekToStateOffsets(Collection<TopicPartition> partitions) { // состояние в памяти соответствует currentOffsets
+        List<TopicPartition> fromBeginning = new ArrayList<>();
+        for (TopicPartition partition : partitions) {
+            OffsetAndMetadata offset = currentOffsets.get(partition);
+            if (offset != null) {
+                mergerConsumer.seek(partition, offset);
+                log.info("Чтение раздела {} продолжится со смещения {}", partition, offset.offset());
+            } else { // суммы из раздела ещё не учтены
+                fromBeginning.add(partition);
+            }
+        }
+        if (!fromBeginning.isEmpty()) {
+            mergerConsumer.seekToBeginning(fromBeginning);
+            log.info("Разделы {} читаются с начала", fromBeginning);
+        }
+    }
+
+    private void takeSnapshot() { // снимок пишется вместе с зафиксированными смещениями
+        flushPending(); // отложенные пары живут только в памяти, после восстановления из снимка их не вернуть
+        producer.flush();
+        mergerConsumer.commitSync(currentOffsets);
+        if (snapshotStore.isEnabled()) {
+            snapshotStore.save(shardEventWeightSums, shardMinWeightPairSums, currentOffsets);
+        }
+    }
+
+    private void flushPending() {
+        emissionFilter.flushPending(state, this::sendSimilarity);
+        similaritySender.flush();
+    }
+
+    private void manageOffsets(ConsumerRecord<Long, SpecificRecordBase> record) {
+        currentOffsets.put(
+                new TopicPartition(record.topic(), record.partition()),
+                new OffsetAndMetadata(record.offset() + 1)
+        );
+    }
+
+    private void commitOffsets() { // смещения фиксируются только после отправки результатов пачки
+        mergerConsumer.commitAsync(currentOffsets, (offsets, exception) -> {
+            if (exception != null) {
+                log.warn("Ошибка при фиксации смещения : {}", offsets, exception);
+            }
+        });
+    }
+
+    private void merge(SimilarityPartialAvro partial) {
+        int shard = partial.getShard();
+
+        LongDoubleHashMap eventWeightSums = shardEventWeightSums.computeIfAbsent(shard, s -> new LongDoubleHashMap());
+        for (EventWeightSumAvro eventWeightSum : partial.getEventWeightSums()) { // сначала суммы мероприятий, они нужны для знаменателя
+            long eventId = eventWeightSum.getEventId();
+            double previous = eventWeightSums.get(eventId, 0.0);
+            eventWeightSums.put(eventId, eventWeightSum.getWeightSum());
+            state.getEventWeightSums().addTo(eventId, eventWeightSum.getWeightSum() - previous);
+        }
+
+        LongPairDoubleHashMap minWeightPairSums = shardMinWeightPairSums.computeIfAbsent(shard,
+                s -> new LongPairDoubleHashMap());
+        for (PairWeightSumAvro pairWeightSum : partial.getPairWeightSums()) {
+            long eventA = pairWeightSum.getEventA();
+            long eventB = pairWeightSum.getEventB();
+            double previous = minWeightPairSums.get(eventA, eventB, 0.0);
+            minWeightPairSums.put(eventA, eventB, pairWeightSum.getMinWeightSum());
+            state.getMinWeightPairSums().addTo(eventA, eventB, pairWeightSum.getMinWeightSum() - previous);
+            changedPairs.put(eventA, eventB, 0.0);
+        }
+    }
+
+    private void sendChanges() {
+        changedPairs.forEach((eventA, eventB, ignored) -> {
+            if (emissionFilter.shouldEmit(eventA, eventB, state.similarity(eventA, eventB))) { // незначительные изменения откладываются
+                sendSimilarity(eventA, eventB);
+            }
+        });
+        similaritySender.flush();
+        changedPairs.clear();
+    }
+
+    private void sendSimilarity(long eventA, long eventB) {
+        similaritySender.send(eventA, eventB, state.similarity(eventA, eventB));
+    }
+}
@@ -0,0 +1,96 @@
+package ru.practicum.aggregator.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityBatchAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityEntryAvro;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Отправляет коэффициенты сходства в сервис Analyzer.
+ * В пакетном режиме коэффициенты за цикл poll копятся и уходят одной записью EventSimilarityBatchAvro на ключ;
+ * ключ - остаток от id первого мероприятия пары, поэтому обновления одной пары всегда идут в один раздел по порядку.
+ * Нулевой коэффициент отзывает пару, покинувшую списки соседей: Analyzer её удаляет.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class SimilaritySender {
+    public static final String VALUE_TYPE_HEADER = "value-type"; // тип значения записи, по нему Analyzer выбирает схему
+
+    private final Producer<Long, SpecificRecordBase> producer;
+    @Value("${aggregator.kafka.topic-events-similarity}")
+    private String topicEventsSimilarity;
+    @Value("${aggregator.kafka.similarity-batch-enabled:false}")
+    private boolean batchEnabled;
+    @Value("${aggregator.kafka.similarity-batch-keys:16}")
+    private int batchKeys;
+    @Value("${aggregator.kafka.similarity-batch-max-size:5000}")
+    private int batchMaxSize;
+    private final Map<Long, List<EventSimilarityEntryAvro>> batches = new HashMap<>(); // ключ записи -> накопленные коэффициенты
+
+    public void send(long eventA, long eventB, double score) {
+        long first = Math.min(eventA, eventB);
+        long second = Math.max(eventA, eventB);
+
+        if (!batchEnabled) {
+            EventSimilarityAvro eventSimilarity = EventSimilarityAvro.newBuilder()
+                    .setEventA(first)
+                    .setEventB(second)
+                    .setScore(score)
+                    .setTimestamp(Instant.now())
+                    .build();
+            producer.send(new ProducerRecord<>(topicEventsSimilarity, null, Instant.now().toEpochMilli(), first,
+                    eventSimilarity));
+            log.info("Коэффициент сходства мероприятий отправлен в сервис Analyzer {}", eventSimilarity);
+            return;
+        }
+
+        long key = Math.floorMod(first, batchKeys);
+        List<EventSimilarityEntryAvro> batch = batches.computeIfAbsent(key, k -> new ArrayList<>());
+        batch.add(EventSimilarityEntryAvro.newBuilder()
+                .setEventA(first)
+                .setEventB(second)
+                .setScore(score)
+                .build());
+        if (batch.size() >= batchMaxSize) { // ограничивает размер записи
+            sendBatch(key, batch);
+        }
+    }
+
+    public void flush() { // вызывается в конце цикла poll, до фиксации смещений
+        batches.forEach((key, batch) -> {
+            if (!batch.isEmpty()) {
+                sendBatch(key, batch);
+            }
+        });
+    }
+
+    private void sendBatch(long key, List<EventSimilarityEntryAvro> batch) {
+        EventSimilarityBatchAvro similarityBatch = EventSimilarityBatchAvro.newBuilder()
+                .setSimilarities(new ArrayList<>(batch))
+                .setTimestamp(Instant.now())
+                .build();
+        RecordHeaders headers = new RecordHeaders();
+        headers.add(VALUE_TYPE_HEADER,
+                EventSimilarityBatchAvro.class.getSimpleName().getBytes(StandardCharsets.UTF_8));
+
+        producer.send(new ProducerRecord<>(topicEventsSimilarity, null, Instant.now().toEpochMilli(), key,
+                similarityBatch, headers));
+        log.info("Пачка коэффициентов сходства отправлена в сервис Analyzer: ключ {}, пар {}", key, batch.size());
+        batch.clear();
+    }
+}
@@ -0,0 +1,125 @@
+package ru.practicum.aggregator.snapshot;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.aggregator.storage.LongDoubleHashMap;
+import ru.practicum.aggregator.storage.WeightDecay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Архив вытесненных мероприятий: по файлу на мероприятие с весами пользователей, скоростью затухания
+ * и опорной эпохой, относительно которой они сохранены, и временем архивации.
+ * Суммы весов и суммы пар в архив не пишутся, при восстановлении они пересчитываются по весам.
+ */
+@Slf4j
+@Component
+public class EventArchive {
+    private static final int MAGIC = 0x45574d45; // "EWME"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".event";
+
+    @Value("${aggregator.eviction.archive-dir:aggregator-archive}")
+    private Path directory;
+
+    public void save(long eventId, WeightDecay weightDecay, LongDoubleHashMap userWeights) {
+        Path path = pathOf(eventId);
+        Path tmp = directory.resolve(eventId + SUFFIX + ".tmp");
+        try {
+            Files.createDirectories(directory);
+            try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(eventId);
+                out.writeLong(weightDecay.getReferenceEpoch());
+                out.writeDouble(weightDecay.getLambda());
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(userWeights.size());
+                userWeights.forEach((userId, weight) -> {
+                    try {
+                        out.writeLong(userId);
+                        out.writeDouble(weight);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                out.flush();
+                file.getFD().sync(); // архив должен быть на диске раньше снимка, в котором мероприятия уже нет
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Ошибка при архивировании мероприятия " + eventId, e);
+        }
+    }
+
+    public ArchivedEvent load(long eventId) {
+        Path path = pathOf(eventId);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != eventId) {
+                throw new IOException("Файл " + path + " не является архивом мероприятия " + eventId);
+            }
+            long referenceEpoch = in.readLong();
+            double lambda = in.readDouble();
+            long savedAt = in.readLong();
+            int userCount = in.readInt();
+            LongDoubleHashMap userWeights = new LongDoubleHashMap(userCount);
+            for (int i = 0; i < userCount; i++) {
+                userWeights.put(in.readLong(), in.readDouble());
+            }
+            return new ArchivedEvent(referenceEpoch, lambda, savedAt, userWeights);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Ошибка при чтении архива мероприятия " + eventId, e);
+        }
+    }
+
+    public void delete(long eventId) {
+        try {
+            Files.deleteIfExists(pathOf(eventId));
+        } catch (IOException e) {
+            log.warn("Не удалось удалить архив мероприятия {}", eventId, e);
+        }
+    }
+
+    public LongDoubleHashMap listArchived() { // id мероприятий, для которых есть архив (как множество)
+        LongDoubleHashMap eventIds = new LongDoubleHashMap();
+        if (!Files.isDirectory(directory)) {
+            return eventIds;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                eventIds.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), 0.0);
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.error("Ошибка при чтении каталога архива мероприятий {}", directory, e);
+        }
+        return eventIds;
+    }
+
+    private Path pathOf(long eventId) {
+        return directory.resolve(eventId + SUFFIX);
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class ArchivedEvent {
+        private final long referenceEpoch;
+        private final double lambda;
+        private final long savedAt;
+        private final LongDoubleHashMap userWeights;
+    }
+}
@@ -0,0 +1,150 @@
+package ru.practicum.aggregator.snapshot;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.aggregator.storage.LongDoubleHashMap;
+import ru.practicum.aggregator.storage.LongPairDoubleHashMap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Снимки состояния объединителя частичных сумм на диске.
+ * Формат: заголовок, смещения Kafka в топике частичных сумм, затем по каждому шарду его последние суммы
+ * весов мероприятий и суммы минимальных весов пар. Итоговые суммы не пишутся, они складываются из сумм шардов.
+ */
+@Slf4j
+@Component
+public class MergerSnapshotStore {
+    private static final int MAGIC = 0x45574d4d; // "EWMM"
+    private static final int VERSION = 1;
+
+    @Value("${aggregator.snapshot.enabled:false}")
+    private boolean enabled;
+    @Value("${aggregator.snapshot.merger-path:aggregator-merger.snapshot}")
+    private Path path;
+    @Value("${aggregator.snapshot.interval-ms:60000}")
+    private long intervalMs;
+    private long lastSnapshotAt = System.currentTimeMillis();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isDue() {
+        return enabled && System.currentTimeMillis() - lastSnapshotAt >= intervalMs;
+    }
+
+    public void save(Map<Integer, LongDoubleHashMap> shardEventWeightSums,
+                     Map<Integer, LongPairDoubleHashMap> shardMinWeightPairSums,
+                     Map<TopicPartition, OffsetAndMetadata> offsets) {
+        long startedAt = System.currentTimeMillis();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                SnapshotWriter writer = new SnapshotWriter(channel);
+                writer.putInt(MAGIC);
+                writer.putInt(VERSION);
+                writer.putLong(Instant.now().toEpochMilli());
+                writer.putOffsets(offsets);
+
+                writer.putInt(shardEventWeightSums.size());
+                for (Map.Entry<Integer, LongDoubleHashMap> shard : shardEventWeightSums.entrySet()) {
+                    writer.putInt(shard.getKey());
+                    writer.putInt(shard.getValue().size());
+                    shard.getValue().forEach((eventId, sum) -> {
+                        writer.putLong(eventId);
+                        writer.putDouble(sum);
+                    });
+                }
+
+                writer.putInt(shardMinWeightPairSums.size());
+                for (Map.Entry<Integer, LongPairDoubleHashMap> shard : shardMinWeightPairSums.entrySet()) {
+                    writer.putInt(shard.getKey());
+                    writer.putInt(shard.getValue().size());
+                    shard.getValue().forEach((eventA, eventB, sum) -> {
+                        writer.putLong(eventA);
+                        writer.putLong(eventB);
+                        writer.putDouble(sum);
+                    });
+                }
+
+                writer.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastSnapshotAt = System.currentTimeMillis();
+            log.info("Снимок состояния объединителя сохранён в {} за {} мс", path, lastSnapshotAt - startedAt);
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Ошибка при сохранении снимка состояния объединителя в {}", path, e);
+        }
+    }
+
+    // заполняет суммы шардов и возвращает смещения, с которых продолжить чтение
+    public Map<TopicPartition, OffsetAndMetadata> load(Map<Integer, LongDoubleHashMap> shardEventWeightSums,
+                                                       Map<Integer, LongPairDoubleHashMap> shardMinWeightPairSums) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        if (!enabled || !Files.exists(path)) {
+            return offsets;
+        }
+
+        long startedAt = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            SnapshotReader reader = new SnapshotReader(channel);
+            if (reader.getInt() != MAGIC || reader.getInt() != VERSION) {
+                log.warn("Файл {} не является снимком состояния объединителя, он будет проигнорирован", path);
+                return offsets;
+            }
+            long createdAt = reader.getLong();
+            offsets.putAll(reader.getOffsets());
+
+            int shardCount = reader.getInt();
+            for (int i = 0; i < shardCount; i++) {
+                int shard = reader.getInt();
+                int sumCount = reader.getInt();
+                LongDoubleHashMap eventWeightSums = new LongDoubleHashMap(sumCount);
+                for (int j = 0; j < sumCount; j++) {
+                    eventWeightSums.put(reader.getLong(), reader.getDouble());
+                }
+                shardEventWeightSums.put(shard, eventWeightSums);
+            }
+
+            shardCount = reader.getInt();
+            for (int i = 0; i < shardCount; i++) {
+                int shard = reader.getInt();
+                int pairCount = reader.getInt();
+                LongPairDoubleHashMap minWeightPairSums = new LongPairDoubleHashMap();
+                for (int j = 0; j < pairCount; j++) {
+                    minWeightPairSums.put(reader.getLong(), reader.getLong(), reader.getDouble());
+                }
+                shardMinWeightPairSums.put(shard, minWeightPairSums);
+            }
+
+            log.info("Состояние объединителя восстановлено из снимка {} от {} за {} мс: шардов {}",
+                    path, Instant.ofEpochMilli(createdAt), System.currentTimeMillis() - startedAt,
+                    shardEventWeightSums.size());
+            return offsets;
+        } catch (IOException | RuntimeException e) {
+            log.error("Ошибка при чтении снимка состояния объединителя {}, топик будет прочитан с начала", path, e);
+            shardEventWeightSums.clear();
+            shardMinWeightPairSums.clear();
+            return new HashMap<>();
+        }
+    }
+}
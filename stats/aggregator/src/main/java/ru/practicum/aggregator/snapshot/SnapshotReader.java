@@ -0,0 +1,76 @@
+package ru.practicum.aggregator.snapshot;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Читает снимок окнами отображения файла в память, так как одно отображение ограничено 2 ГБ.
+ */
+class SnapshotReader {
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private long windowStart;
+    private ByteBuffer window;
+
+    SnapshotReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        map(0);
+    }
+
+    int getInt() throws IOException {
+        ensure(Integer.BYTES);
+        return window.getInt();
+    }
+
+    long getLong() throws IOException {
+        ensure(Long.BYTES);
+        return window.getLong();
+    }
+
+    double getDouble() throws IOException {
+        ensure(Double.BYTES);
+        return window.getDouble();
+    }
+
+    byte[] getBytes(int length) throws IOException {
+        ensure(length);
+        byte[] bytes = new byte[length];
+        window.get(bytes);
+        return bytes;
+    }
+
+    Map<TopicPartition, OffsetAndMetadata> getOffsets() throws IOException {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        int offsetCount = getInt();
+        for (int i = 0; i < offsetCount; i++) {
+            String topic = new String(getBytes(getInt()), StandardCharsets.UTF_8);
+            int partition = getInt();
+            offsets.put(new TopicPartition(topic, partition), new OffsetAndMetadata(getLong()));
+        }
+        return offsets;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (window.remaining() < bytes) {
+            map(windowStart + window.position());
+            if (window.remaining() < bytes) {
+                throw new IOException("Снимок состояния обрезан");
+            }
+        }
+    }
+
+    private void map(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+    }
+}
@@ -0,0 +1,158 @@
+package ru.practicum.aggregator.snapshot;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.aggregator.storage.AggregatorState;
+import ru.practicum.aggregator.storage.LongDoubleHashMap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Снимки состояния агрегатора на диске.
+ * Формат: заголовок, параметры затухания, смещения Kafka, матрица весов, суммы весов мероприятий,
+ * суммы минимальных весов пар.
+ * Снимок пишется во временный файл и атомарно переименовывается, читается через отображение файла в память.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SnapshotStore {
+    private static final int MAGIC = 0x45574d41; // "EWMA"
+    private static final int VERSION = 1;
+
+    private final AggregatorState state;
+    @Value("${aggregator.snapshot.enabled:false}")
+    private boolean enabled;
+    @Value("${aggregator.snapshot.path:aggregator-state.snapshot}")
+    private Path path;
+    @Value("${aggregator.snapshot.interval-ms:60000}")
+    private long intervalMs;
+    private long lastSnapshotAt = System.currentTimeMillis();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isDue() {
+        return enabled && System.currentTimeMillis() - lastSnapshotAt >= intervalMs;
+    }
+
+    public boolean save(Map<TopicPartition, OffsetAndMetadata> offsets) { // true, если снимок записан на диск
+        long startedAt = System.currentTimeMillis();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                SnapshotWriter writer = new SnapshotWriter(channel);
+                writer.putInt(MAGIC);
+                writer.putInt(VERSION);
+                writer.putLong(Instant.now().toEpochMilli());
+                writer.putDouble(state.getWeightDecay().getLambda());
+                writer.putLong(state.getWeightDecay().getReferenceEpoch());
+
+                writer.putOffsets(offsets);
+
+                writer.putInt(state.getUserActionWeightMatrix().size());
+                for (Map.Entry<Long, LongDoubleHashMap> event : state.getUserActionWeightMatrix().entrySet()) {
+                    writer.putLong(event.getKey());
+                    writer.putInt(event.getValue().size());
+                    event.getValue().forEach((userId, weight) -> {
+                        writer.putLong(userId);
+                        writer.putDouble(weight);
+                    });
+                }
+
+                writer.putInt(state.getEventWeightSums().size());
+                state.getEventWeightSums().forEach((eventId, sum) -> {
+                    writer.putLong(eventId);
+                    writer.putDouble(sum);
+                });
+
+                writer.putInt(state.getMinWeightPairSums().size());
+                state.getMinWeightPairSums().forEach((eventA, eventB, sum) -> {
+                    writer.putLong(eventA);
+                    writer.putLong(eventB);
+                    writer.putDouble(sum);
+                });
+
+                writer.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastSnapshotAt = System.currentTimeMillis();
+            log.info("Снимок состояния агрегатора сохранён в {} за {} мс", path, lastSnapshotAt - startedAt);
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Ошибка при сохранении снимка состояния агрегатора в {}", path, e);
+            return false;
+        }
+    }
+
+    public Map<TopicPartition, OffsetAndMetadata> load() { // восстанавливает состояние и возвращает смещения, с которых продолжить чтение
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        if (!enabled || !Files.exists(path)) {
+            return offsets;
+        }
+
+        long startedAt = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            SnapshotReader reader = new SnapshotReader(channel);
+            if (reader.getInt() != MAGIC || reader.getInt() != VERSION) {
+                log.warn("Файл {} не является снимком состояния агрегатора, он будет проигнорирован", path);
+                return offsets;
+            }
+            long createdAt = reader.getLong();
+            double lambda = reader.getDouble();
+            long referenceEpoch = reader.getLong();
+
+            offsets.putAll(reader.getOffsets());
+
+            int eventCount = reader.getInt();
+            for (int i = 0; i < eventCount; i++) {
+                long eventId = reader.getLong();
+                int userCount = reader.getInt();
+                for (int j = 0; j < userCount; j++) {
+                    state.restoreWeight(eventId, reader.getLong(), reader.getDouble());
+                }
+            }
+
+            int sumCount = reader.getInt();
+            for (int i = 0; i < sumCount; i++) {
+                state.getEventWeightSums().put(reader.getLong(), reader.getDouble());
+            }
+
+            int pairCount = reader.getInt();
+            for (int i = 0; i < pairCount; i++) {
+                state.getMinWeightPairSums().put(reader.getLong(), reader.getLong(), reader.getDouble());
+            }
+            state.restoreDecay(lambda, referenceEpoch, createdAt);
+            state.rebuildIndexes();
+
+            log.info("Состояние агрегатора восстановлено из снимка {} от {} за {} мс: мероприятий {}, пар {}",
+                    path, Instant.ofEpochMilli(createdAt), System.currentTimeMillis() - startedAt, eventCount,
+                    pairCount);
+            return offsets;
+        } catch (IOException | RuntimeException e) {
+            log.error("Ошибка при чтении снимка состояния агрегатора {}, состояние будет собрано заново", path, e);
+            state.clear();
+            return new HashMap<>();
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package ru.practicum.aggregator.storage;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.aggregator.config.ApproximateProperties;
+import ru.practicum.aggregator.config.NeighbourProperties;
+import ru.practicum.aggregator.config.ShardingProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Состояние агрегатора: веса действий пользователей, суммы весов мероприятий
+ * и суммы минимальных весов для пар мероприятий.
+ * Если задан aggregator.neighbours.max-count, суммы хранятся только для пар, входящих в список соседей
+ * хотя бы одного из мероприятий; сумма для пары, вернувшейся в список, пересчитывается по матрице весов.
+ * Пары, вошедшие в первые maxCount соседей или покинувшие их, копятся до drainRankChanges.
+ * Если включён aggregator.approximate, пары с очень большими мероприятиями считаются приближённо по MinHash.
+ * Если задан aggregator.decay.half-life-ms, веса хранятся относительно опорной эпохи WeightDecay.
+ * updateWeight можно вызывать из нескольких потоков, если действия одного пользователя обрабатывает один поток;
+ * остальные методы вызываются из потока poll, когда рабочие потоки закончили пачку.
+ */
+@Component
+@Getter
+public class AggregatorState {
+    private final Map<Long, LongDoubleHashMap> userActionWeightMatrix = new ConcurrentHashMap<>(); // матрица весов действий пользователей
+    private final StripedLongPairDoubleHashMap minWeightPairSums; // минимальная сумма для пар мероприятий
+    private final StripedLongDoubleHashMap eventWeightSums; // общие суммы весов каждого мероприятия
+    private final Map<Long, LongDoubleHashMap> userEventIndex = new ConcurrentHashMap<>(); // веса мероприятий, с которыми взаимодействовал пользователь
+    @Getter(AccessLevel.NONE)
+    private final Map<Long, UserBitmap> eventUsers = new ConcurrentHashMap<>(); // пользователи мероприятия, нужны для пересчёта пар
+    @Getter(AccessLevel.NONE)
+    private final NeighbourIndex neighbourIndex; // null, если число соседей не ограничено
+    @Getter(AccessLevel.NONE)
+    private final ApproximateSimilarity approximate; // null, если все пары считаются точно
+    private final WeightDecay weightDecay;
+    @Getter(AccessLevel.NONE)
+    private final List<DropListener> dropListeners = new ArrayList<>(); // получают пары и мероприятия, удалённые из состояния
+    @Getter(AccessLevel.NONE)
+    private final LongPairDoubleHashMap rankChangedPairs = new LongPairDoubleHashMap(); // пары, сменившие место относительно maxCount (как множество)
+
+    public AggregatorState(NeighbourProperties neighbours, ShardingProperties sharding,
+                           ApproximateProperties approximateProperties,
+                           @Value("${aggregator.parallel.workers:1}") int workers,
+                           @Value("${aggregator.decay.half-life-ms:0}") long halfLifeMs) {
+        int stripes = workers > 1 ? Integer.highestOneBit(workers) << 4 : 1; // полос заметно больше потоков, чтобы реже ждать
+        this.minWeightPairSums = new StripedLongPairDoubleHashMap(stripes);
+        this.eventWeightSums = new StripedLongDoubleHashMap(stripes);
+        // шарды отправляют точные частичные суммы, а объединение строится на них, поэтому отсечение только в одиночном режиме
+        boolean pruning = neighbours.getMaxCount() > 0 && sharding.getMode() == ShardingProperties.Mode.STANDALONE;
+        this.neighbourIndex = pruning ? new NeighbourIndex(neighbours.getMaxCount(), neighbours.capacity(),
+                (eventId, neighbourId) -> rankChangedPairs.put(eventId, neighbourId, 0.0)) : null;
+        this.weightDecay = new WeightDecay(halfLifeMs);
+        if (approximateProperties.isEnabled() && weightDecay.isEnabled()) { // токены MinHash требуют весов, кратных tokenWeight
+            throw new IllegalArgumentException("Приближённый режим aggregator.approximate несовместим с затуханием весов");
+        }
+        boolean standalone = sharding.getMode() == ShardingProperties.Mode.STANDALONE;
+        if (!standalone && weightDecay.isEnabled()) { // у каждого шарда своя опорная эпоха, суммы шардов нельзя сложить
+            throw new IllegalArgumentException("Затухание весов aggregator.decay поддерживается только в режиме standalone");
+        }
+        this.approximate = approximateProperties.isEnabled() && standalone
+                ? new ApproximateSimilarity(approximateProperties) : null;
+    }
+
+    public void addDropListener(DropListener listener) { // регистрируется при создании компонентов, до начала обработки
+        dropListeners.add(listener);
+    }
+
+    public boolean updateWeight(long userId, long eventA, double weight, PairConsumer consumer) {
+        LongDoubleHashMap eventUserWeights = userActionWeightMatrix.computeIfAbsent(eventA,
+                e -> new LongDoubleHashMap());
+        double oldWeight;
+        synchronized (eventUserWeights) { // одно мероприятие обновляют потоки разных пользователей
+            oldWeight = eventUserWeights.get(userId, 0.0); // текущий вес пользователя для мероприятия, 0 - если впервые
+
+            if (oldWeight >= weight) {
+                return false; // вес не увеличился, состояние не изменилось
+            }
+
+            eventUserWeights.put(userId, weight); // меняем вес мероприятия
+            if (oldWeight == 0.0) {
+                addEventUser(eventA, userId);
+            }
+            if (approximate != null) {
+                approximate.addWeight(eventA, userId, oldWeight, weight, eventUserWeights.size());
+            }
+        }
+        eventWeightSums.addTo(eventA, weight - oldWeight);
+
+        LongDoubleHashMap userEvents = userEventIndex.computeIfAbsent(userId, u -> new LongDoubleHashMap());
+        userEvents.put(eventA, weight);
+
+        if (userEvents.size() > 1) { // считаем попарные коэффициенты только с мероприятиями, общими для пользователя
+            updatePairs(eventA, oldWeight, weight, userEvents, consumer);
+        }
+        return true;
+    }
+
+    public double similarity(long eventA, long eventB) {
+        double eventWeightSumA = eventWeightSums.get(eventA, 0.0);
+        double eventWeightSumB = eventWeightSums.get(eventB, 0.0);
+
+        if (eventWeightSumA <= 0 || eventWeightSumB <= 0) { // проверяем, что суммы весов положительные
+            return 0.0;
+        }
+
+        double sumOfProductsOfSquareRoots = Math.sqrt(eventWeightSumA) * Math.sqrt(eventWeightSumB); // считаем знаменатель
+
+        if (approximate != null && approximate.covers(eventA, eventB)) {
+            return approximate.estimateMinWeightSum(eventA, eventB, eventWeightSumA, eventWeightSumB)
+                    / sumOfProductsOfSquareRoots;
+        }
+        return minWeightPairSums.get(eventA, eventB, 0.0) / sumOfProductsOfSquareRoots;
+    }
+
+    public double exactSimilarity(long eventA, long eventB) { // точное значение по пересечению пользователей, для проверки оценок
+        double eventWeightSumA = eventWeightSums.get(eventA, 0.0);
+        double eventWeightSumB = eventWeightSums.get(eventB, 0.0);
+        if (eventWeightSumA <= 0 || eventWeightSumB <= 0) {
+            return 0.0;
+        }
+        return recomputeMinWeightSum(eventA, eventB) / (Math.sqrt(eventWeightSumA) * Math.sqrt(eventWeightSumB));
+    }
+
+    public boolean hasPair(long eventA, long eventB) { // пара хранится точно или оценивается приближённо
+        return minWeightPairSums.containsKey(eventA, eventB) || isApproximate(eventA, eventB);
+    }
+
+    // пара отправляется, если она оценивается приближённо или входит в первые maxCount соседей одного из мероприятий;
+    // остальные хранимые пары - буфер кандидатов
+    public boolean isPublished(long eventA, long eventB) {
+        if (isApproximate(eventA, eventB)) {
+            return true;
+        }
+        if (!minWeightPairSums.containsKey(eventA, eventB)) {
+            return false;
+        }
+        return neighbourIndex == null || neighbourIndex.isTop(eventA, eventB) || neighbourIndex.isTop(eventB, eventA);
+    }
+
+    public boolean isApproximate(long eventA, long eventB) {
+        return approximate != null && approximate.covers(eventA, eventB);
+    }
+
+    public void restoreWeight(long eventId, long userId, double weight) { // веса из снимка, суммы восстанавливаются отдельно
+        LongDoubleHashMap eventUserWeights = userActionWeightMatrix.computeIfAbsent(eventId,
+                e -> new LongDoubleHashMap());
+        eventUserWeights.put(userId, weight);
+        userEventIndex.computeIfAbsent(userId, u -> new LongDoubleHashMap()).put(eventId, weight);
+        addEventUser(eventId, userId);
+        if (approximate != null) {
+            approximate.addWeight(eventId, userId, 0.0, weight, eventUserWeights.size());
+        }
+    }
+
+    public void prepareDecay(long timestamp) { // из потока poll до обработки действия с меткой timestamp
+        if (!weightDecay.isEnabled()) {
+            return;
+        }
+        if (weightDecay.getReferenceEpoch() == WeightDecay.NO_REFERENCE) {
+            weightDecay.setReferenceEpoch(timestamp);
+        } else if (weightDecay.needsRebase(timestamp)) {
+            long oldReferenceEpoch = weightDecay.getReferenceEpoch();
+            weightDecay.setReferenceEpoch(timestamp);
+            scaleAll(weightDecay.factorSince(oldReferenceEpoch));
+        }
+    }
+
+    public void restoreDecay(double lambda, long referenceEpoch, long createdAt) { // параметры затухания из снимка
+        if (lambda == weightDecay.getLambda()) {
+            weightDecay.setReferenceEpoch(referenceEpoch);
+            return;
+        }
+        // скорость затухания поменялась: считаем, что до снимка веса затухали по старой, а дальше - по новой
+        if (lambda > 0 && referenceEpoch != WeightDecay.NO_REFERENCE) {
+            scaleAll(Math.exp(-lambda * (createdAt - referenceEpoch)));
+        }
+        weightDecay.setReferenceEpoch(weightDecay.isEnabled() ? createdAt : WeightDecay.NO_REFERENCE);
+    }
+
+    public void evictEvents(LongDoubleHashMap evictedEvents) { // убирает мероприятия (множество id) вместе с их парами
+        evictedEvents.forEach((eventId, ignored) -> {
+            LongDoubleHashMap eventUserWeights = userActionWeightMatrix.remove(eventId);
+            eventWeightSums.remove(eventId, 0.0);
+            eventUsers.remove(eventId);
+            if (approximate != null) {
+                approximate.remove(eventId);
+            }
+            if (eventUserWeights == null) {
+                return;
+            }
+            eventUserWeights.forEach((userId, weight) -> {
+                LongDoubleHashMap userEvents = userEventIndex.get(userId);
+                if (userEvents != null) {
+                    userEvents.remove(eventId, 0.0);
+                    if (userEvents.isEmpty()) {
+                        userEventIndex.remove(userId);
+                    }
+                }
+            });
+        });
+
+        dropPairsOf(evictedEvents);
+        if (!rankChangedPairs.isEmpty()) { // архивные мероприятия остаются в Analyzer с последними коэффициентами
+            LongPairDoubleHashMap archivedPairs = new LongPairDoubleHashMap();
+            rankChangedPairs.forEach((eventA, eventB, ignored) -> {
+                if (evictedEvents.containsKey(eventA) || evictedEvents.containsKey(eventB)) {
+                    archivedPairs.put(eventA, eventB, 0.0);
+                }
+            });
+            archivedPairs.forEach((eventA, eventB, ignored) -> rankChangedPairs.remove(eventA, eventB, 0.0));
+        }
+        for (DropListener listener : dropListeners) { // приближённые пары мероприятий не хранятся поштучно
+            listener.eventsDropped(evictedEvents);
+        }
+    }
+
+    public void restoreEvent(long eventId, LongDoubleHashMap eventUserWeights, PairConsumer consumer) {
+        LongDoubleHashMap restoredPairSums = new LongDoubleHashMap(); // eventB -> сумма минимальных весов с eventId
+        eventUserWeights.forEach((userId, weight) -> {
+            LongDoubleHashMap userEvents = userEventIndex.get(userId);
+            if (userEvents != null) { // пары считаются по текущим весам, они могли измениться, пока мероприятие было в архиве
+                userEvents.forEach((eventB, weightB) -> restoredPairSums.addTo(eventB, Math.min(weight, weightB)));
+            }
+            restoreWeight(eventId, userId, weight);
+            eventWeightSums.addTo(eventId, weight);
+        });
+
+        restoredPairSums.forEach((eventB, sum) -> {
+            if (isApproximate(eventId, eventB)) {
+                consumer.accept(eventId, eventB);
+                return;
+            }
+            minWeightPairSums.put(eventId, eventB, sum);
+            if (neighbourIndex == null || retain(eventId, eventB, similarity(eventId, eventB), this::dropPair)) {
+                consumer.accept(eventId, eventB);
+            } else {
+                minWeightPairSums.remove(eventId, eventB, 0.0);
+            }
+        });
+    }
+
+    public void updateApproximate(LongDoubleHashMap changedEvents, LongPairDoubleHashMap changedPairs) { // после пачки
+        if (approximate == null) {
+            return;
+        }
+        LongDoubleHashMap largeEvents = approximate.drainNewlyLarge();
+        if (!largeEvents.isEmpty()) { // точные суммы пар с ставшими большими мероприятиями больше не поддерживаются
+            dropPairsOf(largeEvents);
+        }
+        changedEvents.forEach((eventId, ignored) -> approximate.collectCandidates(eventId,
+                (eventA, eventB) -> changedPairs.put(eventA, eventB, 0.0)));
+    }
+
+    public void updateNeighbours(LongPairDoubleHashMap changedPairs) { // после пачки: пересматривает списки соседей изменившихся пар
+        if (neighbourIndex == null) {
+            return;
+        }
+        changedPairs.forEach((eventA, eventB, ignored) -> {
+            if (isApproximate(eventA, eventB)) {
+                return; // приближённые пары ограничиваются корзинами LSH, а не списками соседей
+            }
+            if (minWeightPairSums.containsKey(eventA, eventB)) {
+                retain(eventA, eventB, similarity(eventA, eventB), this::dropPair);
+                return;
+            }
+
+            if (!neighbourIndex.admits(eventA, maxSimilarity(eventA, eventB))
+                    && !neighbourIndex.admits(eventB, maxSimilarity(eventA, eventB))) {
+                return; // пара не попадёт в списки соседей даже с наибольшим возможным коэффициентом
+            }
+            minWeightPairSums.put(eventA, eventB, recomputeMinWeightSum(eventA, eventB));
+            if (!retain(eventA, eventB, similarity(eventA, eventB), this::dropPair)) {
+                minWeightPairSums.remove(eventA, eventB, 0.0);
+            }
+        });
+    }
+
+    // после пачки: пары, вошедшие в первые maxCount соседей, передаются в published, а покинувшие их и
+    // не опубликованные другим мероприятием - в retracted, чтобы Analyzer удалил их коэффициент
+    public void drainRankChanges(PairConsumer published, PairConsumer retracted) {
+        rankChangedPairs.forEach((eventA, eventB, ignored) -> {
+            if (isPublished(eventA, eventB)) {
+                published.accept(eventA, eventB);
+            } else {
+                retracted.accept(eventA, eventB);
+            }
+        });
+        rankChangedPairs.clear();
+    }
+
+    public void rebuildIndexes() { // после восстановления из снимка: корзины LSH и списки соседей строятся заново
+        if (approximate != null) {
+            dropPairsOf(approximate.drainNewlyLarge());
+            approximate.rebucketAll();
+        }
+        if (neighbourIndex == null) {
+            return;
+        }
+        neighbourIndex.clear();
+
+        LongPairDoubleHashMap prunedPairs = new LongPairDoubleHashMap();
+        minWeightPairSums.forEach((eventA, eventB, sum) -> {
+            if (!retain(eventA, eventB, similarity(eventA, eventB),
+                    (first, second) -> prunedPairs.put(first, second, 0.0))) {
+                prunedPairs.put(eventA, eventB, 0.0);
+            }
+        });
+        rankChangedPairs.clear(); // списки построены заново, отправленные до снимка пары не меняются
+        prunedPairs.forEach((eventA, eventB, ignored) -> {
+            minWeightPairSums.remove(eventA, eventB, 0.0);
+            rankChangedPairs.put(eventA, eventB, 0.0); // могли быть отправлены до снимка
+            notifyDropped(eventA, eventB);
+        });
+    }
+
+    public void clear() {
+        userActionWeightMatrix.clear();
+        eventUsers.clear();
+        minWeightPairSums.clear();
+        eventWeightSums.clear();
+        userEventIndex.clear();
+        rankChangedPairs.clear();
+        if (neighbourIndex != null) {
+            neighbourIndex.clear();
+        }
+        if (approximate != null) {
+            approximate.clear();
+        }
+    }
+
+    private void updatePairs(long eventA, double oldWeight, double newWeight, LongDoubleHashMap userEvents,
+                             PairConsumer consumer) {
+        userEvents.forEach((eventB, weightB) -> {
+            if (eventB == eventA || isApproximate(eventA, eventB)) {
+                return;
+            }
+
+            // при ограничении соседей набор хранимых пар меняется только в updateNeighbours, здесь обновляются хранимые
+            if (neighbourIndex == null || minWeightPairSums.containsKey(eventA, eventB)) {
+                double delta = Math.min(newWeight, weightB) - Math.min(oldWeight, weightB); // изменился вклад только этого пользователя
+                minWeightPairSums.addTo(eventA, eventB, delta); // обновляем минимальную сумму для пары мероприятий
+            }
+            consumer.accept(eventA, eventB);
+        });
+    }
+
+    private void scaleAll(double factor) {
+        userActionWeightMatrix.values().forEach(eventUserWeights -> eventUserWeights.scaleValues(factor));
+        userEventIndex.values().forEach(userEvents -> userEvents.scaleValues(factor));
+        eventWeightSums.scaleValues(factor);
+        minWeightPairSums.scaleValues(factor);
+    }
+
+    private void dropPairsOf(LongDoubleHashMap events) { // удаляет точные пары с мероприятиями из множества events
+        LongPairDoubleHashMap droppedPairs = new LongPairDoubleHashMap();
+        minWeightPairSums.forEach((eventA, eventB, sum) -> {
+            if (events.containsKey(eventA) || events.containsKey(eventB)) {
+                droppedPairs.put(eventA, eventB, 0.0);
+            }
+        });
+        droppedPairs.forEach((eventA, eventB, ignored) -> {
+            minWeightPairSums.remove(eventA, eventB, 0.0);
+            notifyDropped(eventA, eventB);
+            if (neighbourIndex != null) {
+                neighbourIndex.remove(eventA, eventB);
+                neighbourIndex.remove(eventB, eventA);
+            }
+        });
+        if (neighbourIndex != null) {
+            events.forEach((eventId, ignored) -> neighbourIndex.removeEvent(eventId));
+        }
+    }
+
+    private boolean retain(long eventA, long eventB, double score, PairConsumer dropper) { // true, если пара осталась в списке соседей одного из мероприятий
+        boolean retainedByA = neighbourIndex.offer(eventA, eventB, score,
+                evicted -> dropIfUnreferenced(eventA, evicted, dropper));
+        boolean retainedByB = neighbourIndex.offer(eventB, eventA, score,
+                evicted -> dropIfUnreferenced(eventB, evicted, dropper));
+        return retainedByA || retainedByB;
+    }
+
+    private void dropIfUnreferenced(long eventId, long evicted, PairConsumer dropper) {
+        if (!neighbourIndex.contains(evicted, eventId)) { // пара больше не нужна ни одному из мероприятий
+            dropper.accept(eventId, evicted);
+        }
+    }
+
+    private void dropPair(long eventA, long eventB) {
+        minWeightPairSums.remove(eventA, eventB, 0.0);
+        notifyDropped(eventA, eventB);
+    }
+
+    private void notifyDropped(long eventA, long eventB) {
+        for (DropListener listener : dropListeners) {
+            listener.pairDropped(eventA, eventB);
+        }
+    }
+
+    private double maxSimilarity(long eventA, long eventB) { // сумма минимальных весов не больше меньшей из сумм весов
+        double eventWeightSumA = eventWeightSums.get(eventA, 0.0);
+        double eventWeightSumB = eventWeightSums.get(eventB, 0.0);
+        if (eventWeightSumA <= 0 || eventWeightSumB <= 0) {
+            return 0.0;
+        }
+        return Math.min(eventWeightSumA, eventWeightSumB) / (Math.sqrt(eventWeightSumA) * Math.sqrt(eventWeightSumB));
+    }
+
+    private void addEventUser(long eventId, long userId) { // множества пользователей нужны для пересчёта пар и проверки оценок
+        if (neighbourIndex != null || approximate != null) {
+            eventUsers.computeIfAbsent(eventId, e -> new UserBitmap()).add(userId);
+        }
+    }
+
+    private double recomputeMinWeightSum(long eventA, long eventB) { // общих пользователей находим пересечением множеств
+        LongDoubleHashMap usersA = userActionWeightMatrix.get(eventA);
+        LongDoubleHashMap usersB = userActionWeightMatrix.get(eventB);
+        UserBitmap bitmapA = eventUsers.get(eventA);
+        UserBitmap bitmapB = eventUsers.get(eventB);
+        if (usersA == null || usersB == null || bitmapA == null || bitmapB == null) {
+            return 0.0;
+        }
+
+        double[] sum = new double[1];
+        bitmapA.forEachCommon(bitmapB, userId -> sum[0] += Math.min(usersA.get(userId, 0.0), usersB.get(userId, 0.0)));
+        return sum[0];
+    }
+
+    @FunctionalInterface
+    public interface PairConsumer { // получает пары мероприятий, коэффициент которых мог измениться
+        void accept(long eventA, long eventB);
+    }
+
+    public interface DropListener { // узнаёт об удалении пар, чтобы не хранить по ним данные
+        void pairDropped(long eventA, long eventB);
+
+        void eventsDropped(LongDoubleHashMap events); // множество id вытесненных мероприятий
+    }
+}
@@ -0,0 +1,190 @@
+package ru.practicum.aggregator.storage;
+
+import ru.practicum.aggregator.config.ApproximateProperties;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Приближённые коэффициенты для пар с очень большими мероприятиями.
+ * Вес пользователя раскладывается на токены по tokenWeight, по токенам строится сигнатура MinHash,
+ * доля совпавших позиций сигнатур оценивает взвешенный коэффициент Жаккара J = Σmin / Σmax.
+ * Так как Σmax = SA + SB - Σmin, сумма минимальных весов равна J * (SA + SB) / (1 + J).
+ * Пары-кандидаты находятся по совпадению хешей полос сигнатур (LSH).
+ */
+public class ApproximateSimilarity {
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private final int signatureSize;
+    private final int bands;
+    private final int rows;
+    private final int exactUserLimit;
+    private final int maxCandidates;
+    private final double tokenWeight;
+    private final long[] seeds;
+
+    private final Map<Long, Signature> signatures = new ConcurrentHashMap<>(); // сигнатуры всех мероприятий
+    private final Set<Long> largeEvents = ConcurrentHashMap.newKeySet(); // мероприятия, пары с которыми считаются приближённо
+    private final Set<Long> newlyLargeEvents = ConcurrentHashMap.newKeySet(); // стали большими за пачку
+    private final Map<Long, LongDoubleHashMap> buckets = new HashMap<>(); // хеш полосы -> мероприятия (как множество)
+
+    public ApproximateSimilarity(ApproximateProperties properties) {
+        if (properties.getSignatureSize() % properties.getBands() != 0) {
+            throw new IllegalArgumentException("Размер сигнатуры " + properties.getSignatureSize()
+                    + " должен делиться на число полос " + properties.getBands());
+        }
+        this.signatureSize = properties.getSignatureSize();
+        this.bands = properties.getBands();
+        this.rows = signatureSize / bands;
+        this.exactUserLimit = properties.getExactUserLimit();
+        this.maxCandidates = properties.getMaxCandidates();
+        this.tokenWeight = properties.getTokenWeight();
+        this.seeds = new long[signatureSize];
+        for (int k = 0; k < signatureSize; k++) {
+            seeds[k] = mix((k + 1) * PHI);
+        }
+    }
+
+    public void addWeight(long eventId, long userId, double oldWeight, double newWeight, int eventUserCount) { // под блокировкой мероприятия
+        Signature signature = signatures.computeIfAbsent(eventId, e -> new Signature());
+        for (int token = tokens(oldWeight); token < tokens(newWeight); token++) { // вес только растёт, добавляются новые токены
+            long tokenHash = mix(userId * PHI + token);
+            for (int k = 0; k < signatureSize; k++) {
+                long hash = mix(tokenHash ^ seeds[k]);
+                if (hash < signature.mins[k]) {
+                    signature.mins[k] = hash;
+                    signature.dirty = true;
+                }
+            }
+        }
+        if (eventUserCount > exactUserLimit && largeEvents.add(eventId)) {
+            newlyLargeEvents.add(eventId);
+        }
+    }
+
+    public boolean covers(long eventA, long eventB) {
+        return largeEvents.contains(eventA) || largeEvents.contains(eventB);
+    }
+
+    public double estimateMinWeightSum(long eventA, long eventB, double eventWeightSumA, double eventWeightSumB) {
+        Signature signatureA = signatures.get(eventA);
+        Signature signatureB = signatures.get(eventB);
+        if (signatureA == null || signatureB == null) {
+            return 0.0;
+        }
+        int equal = 0;
+        for (int k = 0; k < signatureSize; k++) {
+            if (signatureA.mins[k] == signatureB.mins[k]) {
+                equal++;
+            }
+        }
+        double jaccard = (double) equal / signatureSize;
+        return jaccard * (eventWeightSumA + eventWeightSumB) / (1 + jaccard);
+    }
+
+    public LongDoubleHashMap drainNewlyLarge() { // мероприятия (как множество), чьи точные пары пора удалить
+        LongDoubleHashMap drained = new LongDoubleHashMap();
+        for (Long eventId : newlyLargeEvents) {
+            drained.put(eventId, 0.0);
+        }
+        newlyLargeEvents.clear();
+        return drained;
+    }
+
+    public void collectCandidates(long eventId, AggregatorState.PairConsumer consumer) { // после пачки, из потока poll
+        Signature signature = signatures.get(eventId);
+        if (signature == null || !signature.dirty) {
+            return;
+        }
+        rebucket(eventId, signature);
+        if (largeEvents.isEmpty()) {
+            return;
+        }
+
+        boolean large = largeEvents.contains(eventId);
+        int[] candidates = new int[1];
+        for (int band = 0; band < bands && candidates[0] < maxCandidates; band++) {
+            buckets.get(signature.bandKeys[band]).forEach((other, ignored) -> {
+                if (other != eventId && candidates[0] < maxCandidates && (large || largeEvents.contains(other))) {
+                    consumer.accept(eventId, other);
+                    candidates[0]++;
+                }
+            });
+        }
+    }
+
+    public void rebucketAll() { // после восстановления из снимка
+        signatures.forEach(this::rebucket);
+    }
+
+    public void remove(long eventId) {
+        Signature signature = signatures.remove(eventId);
+        if (signature != null && signature.bucketed) {
+            for (int band = 0; band < bands; band++) {
+                removeFromBucket(signature.bandKeys[band], eventId);
+            }
+        }
+        largeEvents.remove(eventId);
+        newlyLargeEvents.remove(eventId);
+    }
+
+    public void clear() {
+        signatures.clear();
+        largeEvents.clear();
+        newlyLargeEvents.clear();
+        buckets.clear();
+    }
+
+    private void rebucket(long eventId, Signature signature) {
+        for (int band = 0; band < bands; band++) {
+            long bandKey = band * PHI;
+            for (int row = band * rows; row < (band + 1) * rows; row++) {
+                bandKey = mix(bandKey ^ signature.mins[row]);
+            }
+            if (signature.bucketed && signature.bandKeys[band] == bandKey) {
+                continue;
+            }
+            if (signature.bucketed) {
+                removeFromBucket(signature.bandKeys[band], eventId);
+            }
+            signature.bandKeys[band] = bandKey;
+            buckets.computeIfAbsent(bandKey, b -> new LongDoubleHashMap()).put(eventId, 0.0);
+        }
+        signature.bucketed = true;
+        signature.dirty = false;
+    }
+
+    private void removeFromBucket(long bandKey, long eventId) {
+        LongDoubleHashMap bucket = buckets.get(bandKey);
+        if (bucket != null) {
+            bucket.remove(eventId, 0.0);
+            if (bucket.isEmpty()) {
+                buckets.remove(bandKey);
+            }
+        }
+    }
+
+    private int tokens(double weight) {
+        return (int) Math.round(weight / tokenWeight);
+    }
+
+    private static long mix(long value) { // финализатор SplitMix64
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    private class Signature {
+        private final long[] mins = new long[signatureSize];
+        private final long[] bandKeys = new long[bands];
+        private boolean dirty = true; // сигнатура изменилась, корзины LSH не обновлены
+        private boolean bucketed;
+
+        Signature() {
+            Arrays.fill(mins, Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ru.practicum.aggregator.storage;
+
+final class HashUtils {
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private HashUtils() {
+    }
+
+    static int mix(long key) { // перемешивание битов, чтобы последовательные id не собирались в длинные цепочки
+        long h = key * PHI;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static int mix(long first, long second) {
+        return mix(first * 31 + mix(second));
+    }
+}
@@ -0,0 +1,180 @@
+package ru.practicum.aggregator.storage;
+
+import java.util.Arrays;
+
+/**
+ * Хеш-таблица long -> double с открытой адресацией и линейным пробированием.
+ * Ключи и значения хранятся в примитивных массивах, поэтому ячейка не создаёт объектов-обёрток.
+ * Ключ 0 используется как признак свободной ячейки и хранится отдельно.
+ */
+public class LongDoubleHashMap {
+    private static final int DEFAULT_CAPACITY = 8;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private double[] values;
+    private int size;
+    private int threshold;
+    private int mask;
+
+    private boolean hasZeroKey;
+    private double zeroValue;
+
+    public LongDoubleHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongDoubleHashMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public int size() {
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        return keys[indexOf(key)] != 0;
+    }
+
+    public double get(long key, double defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int index = indexOf(key);
+        return keys[index] != 0 ? values[index] : defaultValue;
+    }
+
+    public void put(long key, double value) {
+        if (key == 0) {
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        int index = indexOf(key);
+        if (keys[index] == 0) {
+            keys[index] = key;
+            size++;
+            values[index] = value;
+            if (size > threshold) {
+                rehash(keys.length << 1);
+            }
+        } else {
+            values[index] = value;
+        }
+    }
+
+    public double addTo(long key, double delta) { // прибавляет delta к значению (0, если ключа не было) и возвращает результат
+        double value = get(key, 0.0) + delta;
+        put(key, value);
+        return value;
+    }
+
+    public double remove(long key, double defaultValue) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                return defaultValue;
+            }
+            hasZeroKey = false;
+            return zeroValue;
+        }
+        int index = indexOf(key);
+        if (keys[index] == 0) {
+            return defaultValue;
+        }
+        double removed = values[index];
+        shiftKeys(index);
+        size--;
+        return removed;
+    }
+
+    public void forEach(LongDoubleConsumer consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    public void scaleValues(double factor) { // умножает все значения на factor
+        zeroValue *= factor;
+        for (int i = 0; i < keys.length; i++) {
+            values[i] *= factor;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+        hasZeroKey = false;
+    }
+
+    private int indexOf(long key) { // индекс ячейки с ключом либо первой свободной ячейки
+        int index = HashUtils.mix(key) & mask;
+        while (keys[index] != 0 && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void shiftKeys(int pos) { // удаление без "надгробий": сдвигаем хвост цепочки на освободившееся место
+        while (true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            long key;
+            while (true) {
+                key = keys[pos];
+                if (key == 0) {
+                    keys[last] = 0;
+                    return;
+                }
+                int slot = HashUtils.mix(key) & mask;
+                if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = key;
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        double[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new double[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(DEFAULT_CAPACITY, (int) (expectedSize / LOAD_FACTOR) + 1) - 1) << 1;
+        return Math.max(DEFAULT_CAPACITY, capacity);
+    }
+
+    @FunctionalInterface
+    public interface LongDoubleConsumer {
+        void accept(long key, double value);
+    }
+}
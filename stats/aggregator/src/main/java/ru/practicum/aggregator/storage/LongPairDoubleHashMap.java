@@ -0,0 +1,169 @@
+package ru.practicum.aggregator.storage;
+
+import java.util.Arrays;
+
+/**
+ * Хеш-таблица (eventA, eventB) -> double для неупорядоченных пар различных мероприятий.
+ * Пара хранится нормализованной (меньший id первым) в двух параллельных массивах ключей,
+ * свободная ячейка отмечается совпадающими ключами, которые для пары невозможны.
+ */
+public class LongPairDoubleHashMap {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] firstKeys;
+    private long[] secondKeys;
+    private double[] values;
+    private int size;
+    private int threshold;
+    private int mask;
+
+    public LongPairDoubleHashMap() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long eventA, long eventB) {
+        long first = Math.min(eventA, eventB);
+        long second = Math.max(eventA, eventB);
+        return !isFree(indexOf(first, second));
+    }
+
+    public double get(long eventA, long eventB, double defaultValue) {
+        long first = Math.min(eventA, eventB);
+        long second = Math.max(eventA, eventB);
+        int index = indexOf(first, second);
+        return isFree(index) ? defaultValue : values[index];
+    }
+
+    public void put(long eventA, long eventB, double value) {
+        long first = Math.min(eventA, eventB);
+        long second = Math.max(eventA, eventB);
+        checkPair(first, second);
+        int index = indexOf(first, second);
+        if (isFree(index)) {
+            firstKeys[index] = first;
+            secondKeys[index] = second;
+            values[index] = value;
+            if (++size > threshold) {
+                rehash(firstKeys.length << 1);
+            }
+        } else {
+            values[index] = value;
+        }
+    }
+
+    public double addTo(long eventA, long eventB, double delta) { // прибавляет delta к значению (0, если пары не было) и возвращает результат
+        double value = get(eventA, eventB, 0.0) + delta;
+        put(eventA, eventB, value);
+        return value;
+    }
+
+    public double remove(long eventA, long eventB, double defaultValue) {
+        long first = Math.min(eventA, eventB);
+        long second = Math.max(eventA, eventB);
+        int index = indexOf(first, second);
+        if (isFree(index)) {
+            return defaultValue;
+        }
+        double removed = values[index];
+        shiftKeys(index);
+        size--;
+        return removed;
+    }
+
+    public void forEach(LongPairDoubleConsumer consumer) {
+        for (int i = 0; i < firstKeys.length; i++) {
+            if (!isFree(i)) {
+                consumer.accept(firstKeys[i], secondKeys[i], values[i]);
+            }
+        }
+    }
+
+    public void scaleValues(double factor) { // умножает все значения на factor
+        for (int i = 0; i < values.length; i++) {
+            values[i] *= factor;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(firstKeys, 0);
+        Arrays.fill(secondKeys, 0);
+        size = 0;
+    }
+
+    private boolean isFree(int index) {
+        return firstKeys[index] == secondKeys[index];
+    }
+
+    private int indexOf(long first, long second) { // индекс ячейки с парой либо первой свободной ячейки
+        int index = HashUtils.mix(first, second) & mask;
+        while (!isFree(index) && (firstKeys[index] != first || secondKeys[index] != second)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void shiftKeys(int pos) {
+        while (true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            while (true) {
+                if (isFree(pos)) {
+                    firstKeys[last] = 0;
+                    secondKeys[last] = 0;
+                    return;
+                }
+                int slot = HashUtils.mix(firstKeys[pos], secondKeys[pos]) & mask;
+                if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            firstKeys[last] = firstKeys[pos];
+            secondKeys[last] = secondKeys[pos];
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldFirstKeys = firstKeys;
+        long[] oldSecondKeys = secondKeys;
+        double[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldFirstKeys.length; i++) {
+            if (oldFirstKeys[i] != oldSecondKeys[i]) {
+                int index = indexOf(oldFirstKeys[i], oldSecondKeys[i]);
+                firstKeys[index] = oldFirstKeys[i];
+                secondKeys[index] = oldSecondKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        firstKeys = new long[capacity];
+        secondKeys = new long[capacity];
+        values = new double[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static void checkPair(long first, long second) {
+        if (first == second) {
+            throw new IllegalArgumentException("Пара должна состоять из разных мероприятий: " + first);
+        }
+    }
+
+    @FunctionalInterface
+    public interface LongPairDoubleConsumer {
+        void accept(long first, long second, double value);
+    }
+}
@@ -0,0 +1,183 @@
+package ru.practicum.aggregator.storage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * Ограниченные списки соседей мероприятий: для каждого мероприятия хранится не больше capacity
+ * соседей с наибольшими коэффициентами сходства. Коэффициенты в списках обновляются при изменении пары,
+ * поэтому между изменениями они могут отставать от текущих значений.
+ * Наружу отдаются только первые maxCount соседей, остальные места - буфер кандидатов, чьи коэффициенты могут вырасти.
+ * Список отсортирован по убыванию коэффициента, при равенстве - по возрастанию id: наименьший сосед последний,
+ * а место соседа находится двоичным поиском по его коэффициенту.
+ * О соседях, вошедших в первые maxCount списка или покинувших их, сообщается topChanged.
+ */
+public class NeighbourIndex {
+    private final int maxCount;
+    private final int capacity;
+    private final AggregatorState.PairConsumer topChanged; // мероприятие и сосед, чьё место относительно maxCount изменилось
+    private final Map<Long, Neighbours> neighbours = new HashMap<>();
+
+    public NeighbourIndex(int maxCount, int capacity, AggregatorState.PairConsumer topChanged) {
+        if (maxCount <= 0 || capacity < maxCount) {
+            throw new IllegalArgumentException("Некорректный размер списка соседей: maxCount = " + maxCount
+                    + ", capacity = " + capacity);
+        }
+        this.maxCount = maxCount;
+        this.capacity = capacity;
+        this.topChanged = topChanged;
+    }
+
+    public boolean contains(long eventId, long neighbourId) {
+        Neighbours list = neighbours.get(eventId);
+        return list != null && list.scoreById.containsKey(neighbourId);
+    }
+
+    public boolean isTop(long eventId, long neighbourId) { // сосед входит в первые maxCount списка мероприятия
+        Neighbours list = neighbours.get(eventId);
+        return list != null && list.isTop(neighbourId, maxCount);
+    }
+
+    public boolean admits(long eventId, double score) { // попадёт ли сосед с таким коэффициентом в список мероприятия
+        Neighbours list = neighbours.get(eventId);
+        return list == null || list.size < capacity || score > list.scores[list.size - 1];
+    }
+
+    /**
+     * Добавляет соседа в список мероприятия или обновляет его коэффициент.
+     * Если список заполнен, вытесняется сосед с наименьшим коэффициентом, его id передаётся в evicted.
+     *
+     * @return true, если сосед находится в списке после вызова
+     */
+    public boolean offer(long eventId, long neighbourId, double score, LongConsumer evicted) {
+        Neighbours list = neighbours.computeIfAbsent(eventId, e -> new Neighbours());
+        // место в первых maxCount меняется только у самого соседа и у соседей по обе стороны границы
+        boolean wasTop = list.isTop(neighbourId, maxCount);
+        boolean hasLast = list.size >= maxCount;
+        long last = hasLast ? list.ids[maxCount - 1] : 0L;
+        boolean hasNext = list.size > maxCount;
+        long next = hasNext ? list.ids[maxCount] : 0L;
+
+        boolean retained = place(list, neighbourId, score, evicted);
+
+        if (list.isTop(neighbourId, maxCount) != wasTop) {
+            topChanged.accept(eventId, neighbourId);
+        }
+        if (hasLast && last != neighbourId && !list.isTop(last, maxCount)) {
+            topChanged.accept(eventId, last);
+        }
+        if (hasNext && next != neighbourId && list.isTop(next, maxCount)) {
+            topChanged.accept(eventId, next);
+        }
+        return retained;
+    }
+
+    public void remove(long eventId, long neighbourId) {
+        Neighbours list = neighbours.get(eventId);
+        if (list == null || !list.scoreById.containsKey(neighbourId)) {
+            return;
+        }
+        int index = list.indexOf(neighbourId, list.scoreById.get(neighbourId, 0.0));
+        boolean hasNext = list.size > maxCount;
+        long next = hasNext ? list.ids[maxCount] : 0L;
+        list.removeAt(index);
+        if (index < maxCount) { // освободившееся место занимает следующий сосед
+            topChanged.accept(eventId, neighbourId);
+            if (hasNext) {
+                topChanged.accept(eventId, next);
+            }
+        }
+    }
+
+    public void removeEvent(long eventId) {
+        neighbours.remove(eventId);
+    }
+
+    public void clear() {
+        neighbours.clear();
+    }
+
+    private boolean place(Neighbours list, long neighbourId, double score, LongConsumer evicted) {
+        if (list.scoreById.containsKey(neighbourId)) {
+            list.removeAt(list.indexOf(neighbourId, list.scoreById.get(neighbourId, 0.0)));
+            list.insert(neighbourId, score);
+            return true;
+        }
+        if (list.size < capacity) {
+            list.insert(neighbourId, score);
+            return true;
+        }
+
+        if (score <= list.scores[list.size - 1]) {
+            return false;
+        }
+        long evictedId = list.ids[list.size - 1];
+        list.removeAt(list.size - 1);
+        list.insert(neighbourId, score);
+        evicted.accept(evictedId);
+        return true;
+    }
+
+    private static class Neighbours {
+        private long[] ids = new long[4];
+        private double[] scores = new double[4];
+        private int size;
+        private final LongDoubleHashMap scoreById = new LongDoubleHashMap(); // коэффициент соседа, по нему ищется место
+
+        boolean isTop(long id, int maxCount) {
+            return scoreById.containsKey(id) && indexOf(id, scoreById.get(id, 0.0)) < maxCount;
+        }
+
+        int indexOf(long id, double score) {
+            int index = search(id, score);
+            if (index < 0) {
+                throw new IllegalStateException("Сосед " + id + " не найден в отсортированном списке");
+            }
+            return index;
+        }
+
+        void removeAt(int index) {
+            scoreById.remove(ids[index], 0.0);
+            size--;
+            System.arraycopy(ids, index + 1, ids, index, size - index);
+            System.arraycopy(scores, index + 1, scores, index, size - index);
+        }
+
+        void insert(long id, double score) {
+            if (size == ids.length) { // массивы растут до capacity по мере появления соседей
+                ids = Arrays.copyOf(ids, size << 1);
+                scores = Arrays.copyOf(scores, size << 1);
+            }
+            int index = -search(id, score) - 1;
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            System.arraycopy(scores, index, scores, index + 1, size - index);
+            ids[index] = id;
+            scores[index] = score;
+            size++;
+            scoreById.put(id, score);
+        }
+
+        // индекс соседа или -(точка вставки) - 1, как в Arrays.binarySearch
+        private int search(long id, double score) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Double.compare(score, scores[mid]); // по убыванию коэффициента
+                if (cmp == 0) {
+                    cmp = Long.compare(ids[mid], id); // при равенстве - по возрастанию id
+                }
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+}
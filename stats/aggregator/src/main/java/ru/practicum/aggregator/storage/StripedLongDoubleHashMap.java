@@ -0,0 +1,92 @@
+package ru.practicum.aggregator.storage;
+
+/**
+ * Потокобезопасная таблица long -> double из нескольких LongDoubleHashMap с отдельными блокировками.
+ * Полоса выбирается по старшим битам хеша, младшие биты используются внутри полосы.
+ */
+public class StripedLongDoubleHashMap {
+    private final LongDoubleHashMap[] stripes;
+    private final int shift;
+
+    public StripedLongDoubleHashMap(int stripeCount) {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount));
+        stripes = new LongDoubleHashMap[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new LongDoubleHashMap();
+        }
+        shift = Integer.SIZE - Integer.numberOfTrailingZeros(count);
+    }
+
+    public int size() {
+        int size = 0;
+        for (LongDoubleHashMap stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public boolean containsKey(long key) {
+        LongDoubleHashMap stripe = stripeOf(key);
+        synchronized (stripe) {
+            return stripe.containsKey(key);
+        }
+    }
+
+    public double get(long key, double defaultValue) {
+        LongDoubleHashMap stripe = stripeOf(key);
+        synchronized (stripe) {
+            return stripe.get(key, defaultValue);
+        }
+    }
+
+    public void put(long key, double value) {
+        LongDoubleHashMap stripe = stripeOf(key);
+        synchronized (stripe) {
+            stripe.put(key, value);
+        }
+    }
+
+    public double addTo(long key, double delta) {
+        LongDoubleHashMap stripe = stripeOf(key);
+        synchronized (stripe) {
+            return stripe.addTo(key, delta);
+        }
+    }
+
+    public double remove(long key, double defaultValue) {
+        LongDoubleHashMap stripe = stripeOf(key);
+        synchronized (stripe) {
+            return stripe.remove(key, defaultValue);
+        }
+    }
+
+    public void forEach(LongDoubleHashMap.LongDoubleConsumer consumer) {
+        for (LongDoubleHashMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.forEach(consumer);
+            }
+        }
+    }
+
+    public void scaleValues(double factor) {
+        for (LongDoubleHashMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.scaleValues(factor);
+            }
+        }
+    }
+
+    public void clear() {
+        for (LongDoubleHashMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    private LongDoubleHashMap stripeOf(long key) {
+        return stripes.length == 1 ? stripes[0] : stripes[HashUtils.mix(key) >>> shift];
+    }
+}
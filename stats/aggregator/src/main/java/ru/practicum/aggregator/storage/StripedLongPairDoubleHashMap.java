@@ -0,0 +1,96 @@
+package ru.practicum.aggregator.storage;
+
+/**
+ * Потокобезопасная таблица (eventA, eventB) -> double из нескольких LongPairDoubleHashMap
+ * с отдельными блокировками.
+ * Полоса выбирается по старшим битам хеша, младшие биты используются внутри полосы.
+ */
+public class StripedLongPairDoubleHashMap {
+    private final LongPairDoubleHashMap[] stripes;
+    private final int shift;
+
+    public StripedLongPairDoubleHashMap(int stripeCount) {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount));
+        stripes = new LongPairDoubleHashMap[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new LongPairDoubleHashMap();
+        }
+        shift = Integer.SIZE - Integer.numberOfTrailingZeros(count);
+    }
+
+    public int size() {
+        int size = 0;
+        for (LongPairDoubleHashMap stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public boolean containsKey(long eventA, long eventB) {
+        LongPairDoubleHashMap stripe = stripeOf(eventA, eventB);
+        synchronized (stripe) {
+            return stripe.containsKey(eventA, eventB);
+        }
+    }
+
+    public double get(long eventA, long eventB, double defaultValue) {
+        LongPairDoubleHashMap stripe = stripeOf(eventA, eventB);
+        synchronized (stripe) {
+            return stripe.get(eventA, eventB, defaultValue);
+        }
+    }
+
+    public void put(long eventA, long eventB, double value) {
+        LongPairDoubleHashMap stripe = stripeOf(eventA, eventB);
+        synchronized (stripe) {
+            stripe.put(eventA, eventB, value);
+        }
+    }
+
+    public double addTo(long eventA, long eventB, double delta) {
+        LongPairDoubleHashMap stripe = stripeOf(eventA, eventB);
+        synchronized (stripe) {
+            return stripe.addTo(eventA, eventB, delta);
+        }
+    }
+
+    public double remove(long eventA, long eventB, double defaultValue) {
+        LongPairDoubleHashMap stripe = stripeOf(eventA, eventB);
+        synchronized (stripe) {
+            return stripe.remove(eventA, eventB, defaultValue);
+        }
+    }
+
+    public void forEach(LongPairDoubleHashMap.LongPairDoubleConsumer consumer) {
+        for (LongPairDoubleHashMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.forEach(consumer);
+            }
+        }
+    }
+
+    public void scaleValues(double factor) {
+        for (LongPairDoubleHashMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.scaleValues(factor);
+            }
+        }
+    }
+
+    public void clear() {
+        for (LongPairDoubleHashMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    private LongPairDoubleHashMap stripeOf(long eventA, long eventB) {
+        if (stripes.length == 1) {
+            return stripes[0];
+        }
+        return stripes[HashUtils.mix(Math.min(eventA, eventB), Math.max(eventA, eventB)) >>> shift];
+    }
+}
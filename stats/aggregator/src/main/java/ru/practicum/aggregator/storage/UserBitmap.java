@@ -0,0 +1,146 @@
+package ru.practicum.aggregator.storage;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Сжатое множество id пользователей в духе Roaring: id делится на старшую часть (ключ контейнера)
+ * и младшие 16 бит. Разреженный контейнер хранит отсортированный массив младших частей,
+ * плотный - битовую карту на 65536 бит; пересечение плотных контейнеров идёт по словам через AND.
+ * Удаление не поддерживается: вес пользователя для мероприятия только растёт.
+ */
+public class UserBitmap {
+    private static final int ARRAY_LIMIT = 4096; // больше - битовая карта (8 КБ) уже не длиннее массива
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private long[] keys = new long[1];
+    private Object[] containers = new Object[1]; // ArrayContainer или long[] битовой карты
+    private int size;
+
+    public void add(long userId) {
+        long key = userId >>> 16;
+        char low = (char) userId;
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, new ArrayContainer());
+        }
+
+        Object container = containers[index];
+        if (container instanceof ArrayContainer array) {
+            if (array.add(low) && array.size > ARRAY_LIMIT) {
+                containers[index] = array.toBitmap();
+            }
+        } else {
+            long[] bitmap = (long[]) container;
+            bitmap[low >>> 6] |= 1L << low;
+        }
+    }
+
+    public void forEachCommon(UserBitmap other, LongConsumer consumer) { // перебирает пользователей, входящих в оба множества
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                intersect(keys[i] << 16, containers[i], other.containers[j], consumer);
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private static void intersect(long high, Object first, Object second, LongConsumer consumer) {
+        if (first instanceof ArrayContainer a && second instanceof ArrayContainer b) {
+            ArrayContainer smaller = a.size <= b.size ? a : b;
+            ArrayContainer larger = smaller == a ? b : a;
+            if (larger.size > smaller.size << 4) { // сильно разные размеры: двоичный поиск вместо слияния
+                for (int k = 0; k < smaller.size; k++) {
+                    if (Arrays.binarySearch(larger.values, 0, larger.size, smaller.values[k]) >= 0) {
+                        consumer.accept(high | smaller.values[k]);
+                    }
+                }
+                return;
+            }
+            int x = 0;
+            int y = 0;
+            while (x < a.size && y < b.size) {
+                if (a.values[x] < b.values[y]) {
+                    x++;
+                } else if (a.values[x] > b.values[y]) {
+                    y++;
+                } else {
+                    consumer.accept(high | a.values[x]);
+                    x++;
+                    y++;
+                }
+            }
+        } else if (first instanceof ArrayContainer array) {
+            intersect(high, array, (long[]) second, consumer);
+        } else if (second instanceof ArrayContainer array) {
+            intersect(high, array, (long[]) first, consumer);
+        } else {
+            long[] a = (long[]) first;
+            long[] b = (long[]) second;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = a[w] & b[w];
+                while (word != 0) {
+                    consumer.accept(high | ((long) w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+
+    private static void intersect(long high, ArrayContainer array, long[] bitmap, LongConsumer consumer) {
+        for (int k = 0; k < array.size; k++) {
+            char low = array.values[k];
+            if ((bitmap[low >>> 6] & (1L << low)) != 0) {
+                consumer.accept(high | low);
+            }
+        }
+    }
+
+    private void insertContainer(int index, long key, Object container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+            containers = Arrays.copyOf(containers, size << 1);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    private static class ArrayContainer {
+        private char[] values = new char[4];
+        private int size;
+
+        boolean add(char value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0) {
+                return false;
+            }
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size << 1);
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+            return true;
+        }
+
+        long[] toBitmap() {
+            long[] bitmap = new long[BITMAP_WORDS];
+            for (int k = 0; k < size; k++) {
+                bitmap[values[k] >>> 6] |= 1L << values[k];
+            }
+            return bitmap;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ru.practicum.aggregator.storage;
+
+/**
+ * Экспоненциальное затухание весов без перезаписи матрицы.
+ * Вес действия в момент t хранится как w * e^(λ(t - t0)) относительно общей опорной эпохи t0:
+ * к моменту T все веса затухают на один и тот же множитель e^(-λ(T - t0)), а коэффициент сходства
+ * не меняется при умножении всех весов на общий множитель, поэтому хранимые значения пересчитывать не нужно.
+ * Опорная эпоха сдвигается, только когда показатель экспоненты приближается к переполнению double.
+ */
+public class WeightDecay {
+    public static final long NO_REFERENCE = Long.MIN_VALUE;
+    private static final double REBASE_EXPONENT = 300.0; // e^300 ~ 1e130, до переполнения double большой запас
+
+    private final double lambda; // скорость затухания, 1/мс
+    private long referenceEpoch = NO_REFERENCE; // опорная эпоха t0, задаётся первым действием
+
+    public WeightDecay(long halfLifeMs) {
+        this.lambda = halfLifeMs > 0 ? Math.log(2) / halfLifeMs : 0.0;
+    }
+
+    public boolean isEnabled() {
+        return lambda > 0;
+    }
+
+    public double getLambda() {
+        return lambda;
+    }
+
+    public long getReferenceEpoch() {
+        return referenceEpoch;
+    }
+
+    void setReferenceEpoch(long referenceEpoch) {
+        this.referenceEpoch = referenceEpoch;
+    }
+
+    public double scale(double weight, long timestamp) {
+        if (lambda == 0 || referenceEpoch == NO_REFERENCE) {
+            return weight;
+        }
+        return weight * Math.exp(lambda * (timestamp - referenceEpoch));
+    }
+
+    public double factorSince(long oldReferenceEpoch) { // множитель для значений, сохранённых относительно другой эпохи
+        if (lambda == 0 || oldReferenceEpoch == NO_REFERENCE || referenceEpoch == NO_REFERENCE) {
+            return 1.0;
+        }
+        return Math.exp(lambda * (oldReferenceEpoch - referenceEpoch));
+    }
+
+    // множитель для значений, сохранённых в savedAt при скорости затухания oldLambda относительно oldReferenceEpoch;
+    // если скорость поменялась, до savedAt веса затухали по старой, а дальше - по новой, как в restoreDecay
+    public double factorFrom(double oldLambda, long oldReferenceEpoch, long savedAt) {
+        if (oldLambda == lambda) {
+            return factorSince(oldReferenceEpoch);
+        }
+        double factor = oldLambda > 0 && oldReferenceEpoch != NO_REFERENCE
+                ? Math.exp(-oldLambda * (savedAt - oldReferenceEpoch)) // фактический вес на момент сохранения
+                : 1.0;
+        return scale(factor, savedAt);
+    }
+
+    boolean needsRebase(long timestamp) {
+        return lambda * (timestamp - referenceEpoch) > REBASE_EXPONENT;
+    }
+}
@@ -0,0 +1,141 @@
+package ru.practicum.aggregator.storage;
+
+import org.junit.jupiter.api.Test;
+import ru.practicum.aggregator.config.ApproximateProperties;
+import ru.practicum.aggregator.config.NeighbourProperties;
+import ru.practicum.aggregator.config.ShardingProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Инкрементальный пересчёт сумм сверяется с полным пересчётом по матрице максимальных весов
+ * на случайных потоках действий. Пользователей и мероприятий мало, поэтому часто встречаются
+ * равные веса одного пользователя у разных мероприятий и повторы действий с тем же весом.
+ */
+class AggregatorStateTest {
+    private static final double[] WEIGHTS = {0.4, 0.8, 1.0}; // просмотр, регистрация, лайк
+    private static final int USERS = 12;
+    private static final int EVENTS = 10;
+    private static final int ACTIONS = 3_000;
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    void incrementalSumsMatchRecompute() {
+        for (long seed = 1; seed <= 20; seed++) {
+            AggregatorState state = newState(1);
+            double[][] weights = new double[USERS][EVENTS];
+            Random random = new Random(seed);
+
+            for (int i = 0; i < ACTIONS; i++) {
+                int user = random.nextInt(USERS);
+                int event = random.nextInt(EVENTS);
+                double weight = WEIGHTS[random.nextInt(WEIGHTS.length)];
+
+                double[][] before = pairSums(weights);
+                LongPairDoubleHashMap reported = new LongPairDoubleHashMap();
+                boolean changed = state.updateWeight(user, event, weight,
+                        (eventA, eventB) -> reported.put(eventA, eventB, 0.0));
+
+                assertEquals(weight > weights[user][event], changed, "seed " + seed + ", действие " + i);
+                weights[user][event] = Math.max(weights[user][event], weight);
+
+                double[][] after = pairSums(weights);
+                for (int a = 0; a < EVENTS; a++) {
+                    for (int b = a + 1; b < EVENTS; b++) {
+                        if (Math.abs(after[a][b] - before[a][b]) > EPSILON) {
+                            assertTrue(reported.containsKey(a, b),
+                                    "seed " + seed + ": изменение пары " + a + "-" + b + " не передано");
+                        }
+                    }
+                }
+            }
+            assertState(state, weights, "seed " + seed);
+        }
+    }
+
+    @Test
+    void parallelUpdatesMatchRecompute() throws Exception {
+        int workers = 4;
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            for (long seed = 1; seed <= 10; seed++) {
+                AggregatorState state = newState(workers);
+                double[][] weights = new double[USERS][EVENTS];
+                Random random = new Random(seed);
+
+                List<List<double[]>> workerActions = new ArrayList<>();
+                for (int i = 0; i < workers; i++) {
+                    workerActions.add(new ArrayList<>());
+                }
+                for (int i = 0; i < ACTIONS; i++) { // действия одного пользователя попадают в один поток
+                    int user = random.nextInt(USERS);
+                    int event = random.nextInt(EVENTS);
+                    double weight = WEIGHTS[random.nextInt(WEIGHTS.length)];
+                    weights[user][event] = Math.max(weights[user][event], weight);
+                    workerActions.get(user % workers).add(new double[]{user, event, weight});
+                }
+
+                List<Future<?>> futures = new ArrayList<>();
+                for (List<double[]> actions : workerActions) {
+                    futures.add(pool.submit(() -> actions.forEach(action ->
+                            state.updateWeight((long) action[0], (long) action[1], action[2], (a, b) -> {
+                            }))));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                assertState(state, weights, "seed " + seed);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static AggregatorState newState(int workers) {
+        return new AggregatorState(new NeighbourProperties(), new ShardingProperties(), new ApproximateProperties(),
+                workers, 0);
+    }
+
+    private static void assertState(AggregatorState state, double[][] weights, String context) {
+        for (int event = 0; event < EVENTS; event++) {
+            double sum = 0.0;
+            for (int user = 0; user < USERS; user++) {
+                sum += weights[user][event];
+            }
+            assertEquals(sum, state.getEventWeightSums().get(event, 0.0), EPSILON,
+                    context + ": сумма весов мероприятия " + event);
+        }
+
+        double[][] pairSums = pairSums(weights);
+        for (int a = 0; a < EVENTS; a++) {
+            for (int b = a + 1; b < EVENTS; b++) {
+                assertEquals(pairSums[a][b], state.getMinWeightPairSums().get(a, b, 0.0), EPSILON,
+                        context + ": сумма минимальных весов пары " + a + "-" + b);
+                assertEquals(pairSums[a][b], state.getMinWeightPairSums().get(b, a, 0.0), EPSILON,
+                        context + ": порядок мероприятий пары " + b + "-" + a);
+            }
+        }
+    }
+
+    private static double[][] pairSums(double[][] weights) { // полный пересчёт по определению
+        double[][] sums = new double[EVENTS][EVENTS];
+        for (double[] userWeights : weights) {
+            for (int a = 0; a < EVENTS; a++) {
+                for (int b = a + 1; b < EVENTS; b++) {
+                    if (userWeights[a] > 0 && userWeights[b] > 0) {
+                        sums[a][b] += Math.min(userWeights[a], userWeights[b]);
+                    }
+                }
+            }
+        }
+        return sums;
+    }
+}
@@ -1,9 +1,48 @@
 package ru.practicum.analyzer.deserializer;
 
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
 import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityBatchAvro;
+import ru.practicum.ewm.stats.serialization.AvroDeserializer;
 
-public class EventSimilarityDeserializer extends  BaseAvroDeserializer<EventSimilarityAvro> {
-    public EventSimilarityDeserializer() {
-        super(EventSimilarityAvro.getClassSchema());
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Читает коэффициенты сходства: одиночные EventSimilarityAvro или пачки EventSimilarityBatchAvro.
+ * Схема выбирается по заголовку value-type; записи без заголовка читаются как одиночные.
+ */
+public class EventSimilarityDeserializer implements Deserializer<SpecificRecordBase> {
+    public static final String VALUE_TYPE_HEADER = "value-type";
+    private static final String BATCH_TYPE = EventSimilarityBatchAvro.class.getSimpleName();
+
+    private final AvroDeserializer<EventSimilarityAvro> singleDeserializer =
+            new AvroDeserializer<>(EventSimilarityAvro.getClassSchema());
+    private final AvroDeserializer<EventSimilarityBatchAvro> batchDeserializer =
+            new AvroDeserializer<>(EventSimilarityBatchAvro.getClassSchema());
+
+    @Override
+    public SpecificRecordBase deserialize(String topic, byte[] data) {
+        return singleDeserializer.deserialize(topic, data);
+    }
+
+    @Override
+    public SpecificRecordBase deserialize(String topic, Headers headers, byte[] data) {
+        return isBatch(headers) ? batchDeserializer.deserialize(topic, data)
+                : singleDeserializer.deserialize(topic, data);
+    }
+
+    @Override
+    public SpecificRecordBase deserialize(String topic, Headers headers, ByteBuffer data) {
+        return isBatch(headers) ? batchDeserializer.deserialize(topic, headers, data)
+                : singleDeserializer.deserialize(topic, headers, data);
+    }
+
+    private static boolean isBatch(Headers headers) {
+        Header valueType = headers == null ? null : headers.lastHeader(VALUE_TYPE_HEADER);
+        return valueType != null && BATCH_TYPE.equals(new String(valueType.value(), StandardCharsets.UTF_8));
     }
-}
\ No newline at end of file
+}
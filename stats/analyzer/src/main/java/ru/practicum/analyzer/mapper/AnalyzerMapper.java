@@ -4,9 +4,12 @@ import org.springframework.stereotype.Component;
 import ru.practicum.analyzer.model.EventSimilarity;
 import ru.practicum.analyzer.model.UserAction;
 import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityEntryAvro;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
 import ru.practicum.grpc.stats.analyzer.RecommendedEventProto;
 
+import java.time.Instant;
+
 @Component
 public class AnalyzerMapper {
 
@@ -19,6 +22,15 @@ public class AnalyzerMapper {
                 .build();
     }
 
+    public static EventSimilarityAvro mapToEventSimilarityAvro(EventSimilarityEntryAvro entry, Instant timestamp) {
+        return EventSimilarityAvro.newBuilder()
+                .setEventA(entry.getEventA())
+                .setEventB(entry.getEventB())
+                .setScore(entry.getScore())
+                .setTimestamp(timestamp)
+                .build();
+    }
+
     public static UserAction mapToUserAction(UserActionAvro userActionAvro) {
 
         double weight = switch (userActionAvro.getActionType()) {
@@ -8,7 +8,8 @@ import java.time.Instant;
 
 
 @Entity
-@Table(name = "events_similarity")
+@Table(name = "events_similarity", uniqueConstraints = @UniqueConstraint(name = "uq_events_similarity_pair",
+        columnNames = {"eventA_id", "eventB_id"})) // по этой паре работает ON CONFLICT пакетной записи
 @Getter
 @Setter
 @NoArgsConstructor
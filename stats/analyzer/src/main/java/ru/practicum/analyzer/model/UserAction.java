@@ -7,7 +7,8 @@ import lombok.*;
 import java.time.Instant;
 
 @Entity
-@Table(name = "user_actions")
+@Table(name = "user_actions", uniqueConstraints = @UniqueConstraint(name = "uq_user_actions_user_event",
+        columnNames = {"user_id", "event_id"})) // по этой паре работает ON CONFLICT пакетной записи
 @Getter
 @Setter
 @NoArgsConstructor
@@ -0,0 +1,82 @@
+package ru.practicum.analyzer.repositories;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Пакетная запись коэффициентов сходства одним INSERT ... ON CONFLICT по уникальной паре мероприятий,
+ * без предварительного чтения и без сущностей JPA. Нулевой коэффициент - отзыв пары агрегатором,
+ * такая пара удаляется, если хранимое значение не новее отзыва.
+ */
+@Repository
+@RequiredArgsConstructor
+public class EventSimilarityBatchRepository {
+    private static final String UPSERT = """
+            INSERT INTO events_similarity (eventA_id, eventB_id, score, timestamp_at)
+            VALUES (?, ?, ?, ?)
+            ON CONFLICT (eventA_id, eventB_id) DO UPDATE
+            SET score = EXCLUDED.score, timestamp_at = EXCLUDED.timestamp_at
+            WHERE events_similarity.timestamp_at <= EXCLUDED.timestamp_at
+            """;
+    private static final String DELETE = """
+            DELETE FROM events_similarity
+            WHERE eventA_id = ? AND eventB_id = ? AND timestamp_at <= ?
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    @Value("${analyzer.similarity.upsert-batch-size:1000}")
+    private int batchSize;
+
+    public int upsertAll(List<EventSimilarityAvro> eventSimilarities) {
+        List<EventSimilarityAvro> rows = latestByPair(eventSimilarities);
+        List<EventSimilarityAvro> upserts = new ArrayList<>(rows.size());
+        List<EventSimilarityAvro> deletes = new ArrayList<>();
+        for (EventSimilarityAvro row : rows) {
+            (row.getScore() > 0 ? upserts : deletes).add(row);
+        }
+
+        jdbcTemplate.batchUpdate(UPSERT, upserts, batchSize, (ps, eventSimilarity) -> {
+            ps.setLong(1, eventSimilarity.getEventA());
+            ps.setLong(2, eventSimilarity.getEventB());
+            ps.setDouble(3, eventSimilarity.getScore());
+            ps.setObject(4, OffsetDateTime.ofInstant(eventSimilarity.getTimestamp(), ZoneOffset.UTC));
+        });
+        if (!deletes.isEmpty()) {
+            jdbcTemplate.batchUpdate(DELETE, deletes, batchSize, (ps, eventSimilarity) -> {
+                ps.setLong(1, eventSimilarity.getEventA());
+                ps.setLong(2, eventSimilarity.getEventB());
+                ps.setObject(3, OffsetDateTime.ofInstant(eventSimilarity.getTimestamp(), ZoneOffset.UTC));
+            });
+        }
+        return rows.size();
+    }
+
+    // одна пара дважды в одном INSERT даёт ошибку ON CONFLICT, поэтому остаётся последнее значение пары;
+    // строки упорядочены по паре, чтобы параллельные транзакции блокировали их в одном порядке
+    private static List<EventSimilarityAvro> latestByPair(List<EventSimilarityAvro> eventSimilarities) {
+        List<EventSimilarityAvro> sorted = new ArrayList<>(eventSimilarities);
+        sorted.sort(Comparator.comparingLong(EventSimilarityAvro::getEventA)
+                .thenComparingLong(EventSimilarityAvro::getEventB)); // сортировка устойчива, порядок прихода сохраняется
+
+        List<EventSimilarityAvro> rows = new ArrayList<>(sorted.size());
+        for (EventSimilarityAvro eventSimilarity : sorted) {
+            int last = rows.size() - 1;
+            if (last >= 0 && rows.get(last).getEventA() == eventSimilarity.getEventA()
+                    && rows.get(last).getEventB() == eventSimilarity.getEventB()) {
+                rows.set(last, eventSimilarity);
+            } else {
+                rows.add(eventSimilarity);
+            }
+        }
+        return rows;
+    }
+}
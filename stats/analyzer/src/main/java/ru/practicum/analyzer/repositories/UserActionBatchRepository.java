@@ -0,0 +1,67 @@
+package ru.practicum.analyzer.repositories;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import ru.practicum.analyzer.model.UserAction;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Пакетная запись действий пользователей одним INSERT ... ON CONFLICT по уникальной паре пользователь - мероприятие.
+ * Сохраняется наибольший вес и время действия с этим весом.
+ */
+@Repository
+@RequiredArgsConstructor
+public class UserActionBatchRepository {
+    // условие WHERE оставляет строку без изменений, если вес не растёт: это GREATEST(weight) вместе с его временем
+    private static final String UPSERT = """
+            INSERT INTO user_actions (user_id, event_id, weight, timestamp_at)
+            VALUES (?, ?, ?, ?)
+            ON CONFLICT (user_id, event_id) DO UPDATE
+            SET weight = EXCLUDED.weight, timestamp_at = EXCLUDED.timestamp_at
+            WHERE user_actions.weight < EXCLUDED.weight
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    @Value("${analyzer.user-action.upsert-batch-size:1000}")
+    private int batchSize;
+
+    public int upsertAll(List<UserAction> userActions) {
+        List<UserAction> rows = maxWeightByPair(userActions);
+        jdbcTemplate.batchUpdate(UPSERT, rows, batchSize, (ps, userAction) -> {
+            ps.setLong(1, userAction.getUserId());
+            ps.setLong(2, userAction.getEventId());
+            ps.setDouble(3, userAction.getWeight());
+            ps.setObject(4, OffsetDateTime.ofInstant(userAction.getTimestamp(), ZoneOffset.UTC));
+        });
+        return rows.size();
+    }
+
+    // одна пара дважды в одном INSERT даёт ошибку ON CONFLICT, поэтому остаётся действие с наибольшим весом,
+    // при равном весе - первое, как и при построчной записи; строки упорядочены по паре для одинакового порядка блокировок
+    private static List<UserAction> maxWeightByPair(List<UserAction> userActions) {
+        List<UserAction> sorted = new ArrayList<>(userActions);
+        sorted.sort(Comparator.comparingLong(UserAction::getUserId)
+                .thenComparingLong(UserAction::getEventId)); // сортировка устойчива, порядок прихода сохраняется
+
+        List<UserAction> rows = new ArrayList<>(sorted.size());
+        for (UserAction userAction : sorted) {
+            int last = rows.size() - 1;
+            if (last >= 0 && rows.get(last).getUserId() == userAction.getUserId()
+                    && rows.get(last).getEventId() == userAction.getEventId()) {
+                if (rows.get(last).getWeight() < userAction.getWeight()) {
+                    rows.set(last, userAction);
+                }
+            } else {
+                rows.add(userAction);
+            }
+        }
+        return rows;
+    }
+}
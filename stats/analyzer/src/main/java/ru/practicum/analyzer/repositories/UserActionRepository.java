@@ -15,6 +15,9 @@ import java.util.Optional;
 public interface UserActionRepository extends JpaRepository<UserAction, Long> {
     Optional<UserAction> findByUserIdAndEventId(long userId, long eventId);
 
+    @Query("SELECT ua.eventId FROM UserAction ua WHERE ua.userId = :userId")
+    List<Long> findEventIdsByUserId(@Param("userId") long userId);
+
     @Query(value = """
             SELECT ua.* 
             FROM user_actions ua
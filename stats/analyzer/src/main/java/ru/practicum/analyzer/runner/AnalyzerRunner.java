@@ -5,6 +5,7 @@ import lombok.RequiredArgsConstructor;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 import ru.practicum.analyzer.service.EventSimilarityService;
+import ru.practicum.analyzer.service.SimilarityGraph;
 import ru.practicum.analyzer.service.UserActionService;
 
 
@@ -13,9 +14,12 @@ import ru.practicum.analyzer.service.UserActionService;
 public class AnalyzerRunner implements CommandLineRunner {
     private final EventSimilarityService eventSimilarityService;
     private final UserActionService userActionService;
+    private final SimilarityGraph similarityGraph;
 
     @Override
     public void run(String... args) {
+        similarityGraph.load(); // до запуска consumer, чтобы обновления из топика не потерялись
+
         Thread userActionServiceThread = new Thread(userActionService);
         userActionServiceThread.setName("UserActionServiceThread");
         userActionServiceThread.start();
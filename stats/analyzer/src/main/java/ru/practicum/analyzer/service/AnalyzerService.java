@@ -12,8 +12,12 @@ import java.util.List;
 public interface AnalyzerService {
     void saveEventSimilarity(EventSimilarityAvro eventSimilarityAvro);
 
+    void saveEventSimilarities(List<EventSimilarityAvro> eventSimilarities);
+
     void saveUserAction(UserActionAvro userAction);
 
+    void saveUserActions(List<UserActionAvro> userActions);
+
     List<RecommendedEventProto> getSimilarEvents(SimilarEventsRequestProto request);
 
     List<RecommendedEventProto> getRecommendationsForUser(UserPredictionsRequestProto request);
@@ -8,7 +8,9 @@ import org.springframework.transaction.annotation.Transactional;
 import ru.practicum.analyzer.mapper.AnalyzerMapper;
 import ru.practicum.analyzer.model.EventSimilarity;
 import ru.practicum.analyzer.model.UserAction;
+import ru.practicum.analyzer.repositories.EventSimilarityBatchRepository;
 import ru.practicum.analyzer.repositories.EventSimilarityRepository;
+import ru.practicum.analyzer.repositories.UserActionBatchRepository;
 import ru.practicum.analyzer.repositories.UserActionRepository;
 import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
@@ -22,10 +24,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.function.LongPredicate;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -33,43 +36,44 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class AnalyzerServiceImpl implements AnalyzerService {
     private final EventSimilarityRepository eventSimilarityRepository;
+    private final EventSimilarityBatchRepository eventSimilarityBatchRepository;
     private final UserActionRepository userActionRepository;
+    private final UserActionBatchRepository userActionBatchRepository;
+    private final SimilarityGraph similarityGraph;
+    private final UserInteractions userInteractions;
 
     @Override
     @Transactional
     public void saveEventSimilarity(EventSimilarityAvro eventSimilarity) {
-        Optional<EventSimilarity> oldEventSimilarity = eventSimilarityRepository.findByEventAAndEventB(
-                eventSimilarity.getEventA(), eventSimilarity.getEventB());
-
-        if (oldEventSimilarity.isEmpty()) {
-            eventSimilarityRepository.save(AnalyzerMapper.mapToEventSimilarity(eventSimilarity));
-            log.info("Сохранение нового сходства событий " + eventSimilarity);
-        } else {
-            EventSimilarity updatedEventSimilarity = oldEventSimilarity.get();
-            updatedEventSimilarity.setScore(eventSimilarity.getScore());
-            updatedEventSimilarity.setTimestamp(eventSimilarity.getTimestamp());
-            log.info("Обновление нового сходства событий" + eventSimilarity);
+        saveEventSimilarities(List.of(eventSimilarity));
+    }
+
+    @Override
+    @Transactional
+    public void saveEventSimilarities(List<EventSimilarityAvro> eventSimilarities) { // вся пачка poll в одной транзакции
+        if (eventSimilarities.isEmpty()) {
+            return;
         }
+        int saved = eventSimilarityBatchRepository.upsertAll(eventSimilarities);
+        log.info("Сохранены коэффициенты сходства: получено {}, записано пар {}", eventSimilarities.size(), saved);
     }
 
     @Override
     @Transactional
     public void saveUserAction(UserActionAvro userAction) {
-        Optional<UserAction> oldUserAction = userActionRepository.findByUserIdAndEventId(userAction.getUserId(),
-                userAction.getEventId());
-
-        UserAction newUserAction = AnalyzerMapper.mapToUserAction(userAction);
-        if (oldUserAction.isEmpty()) {
-            userActionRepository.save(newUserAction);
-            log.info("Сохранение новых действий пользователя " + newUserAction);
-        } else {
-            UserAction updatedUserAction = oldUserAction.get();
-            if (updatedUserAction.getWeight() < newUserAction.getWeight()) { // под вопросом
-                updatedUserAction.setWeight(newUserAction.getWeight());
-                updatedUserAction.setTimestamp(newUserAction.getTimestamp());
-                log.info("Обновление действий пользователя " + newUserAction);
-            }
+        saveUserActions(List.of(userAction));
+    }
+
+    @Override
+    @Transactional
+    public void saveUserActions(List<UserActionAvro> userActions) { // вся пачка poll в одной транзакции
+        if (userActions.isEmpty()) {
+            return;
         }
+        int saved = userActionBatchRepository.upsertAll(userActions.stream()
+                .map(AnalyzerMapper::mapToUserAction)
+                .toList());
+        log.info("Сохранены действия пользователей: получено {}, записано пар {}", userActions.size(), saved);
     }
 
     @Override
@@ -78,6 +82,10 @@ public class AnalyzerServiceImpl implements AnalyzerService {
         long userId = request.getUserId();
         long max = request.getMaxResults();
 
+        if (similarityGraph.isReady()) {
+            return getSimilarEventsFromGraph(eventId, userId, request.getMaxResults());
+        }
+
         List<EventSimilarity> eventSimilarities = eventSimilarityRepository.GetSimilarEvents(eventId, userId, max);
 
         return eventSimilarities.stream()
@@ -85,6 +93,23 @@ public class AnalyzerServiceImpl implements AnalyzerService {
                 .toList();
     }
 
+    private List<RecommendedEventProto> getSimilarEventsFromGraph(long eventId, long userId, int max) {
+        // как и в запросе GetSimilarEvents, пара исключается, только если пользователь взаимодействовал
+        // с обоими мероприятиями, поэтому весь набор пользователя нужен, только если он видел eventId
+        LongPredicate exclude = id -> false;
+        if (userInteractions.hasInteracted(userId, eventId)) {
+            long[] interacted = userInteractions.get(userId);
+            exclude = id -> UserInteractions.contains(interacted, id);
+        }
+
+        SimilarityGraph.Neighbours similar = similarityGraph.getSimilarEvents(eventId, exclude, Math.max(max, 0));
+        List<RecommendedEventProto> similarEvents = new ArrayList<>(similar.size());
+        for (int i = 0; i < similar.size(); i++) {
+            similarEvents.add(AnalyzerMapper.mapRecommendedEventProto(similar.getEventId(i), similar.getScore(i)));
+        }
+        return similarEvents;
+    }
+
     @Override
     public List<RecommendedEventProto> getRecommendationsForUser(UserPredictionsRequestProto request) {
         long userId = request.getUserId();
@@ -100,8 +125,9 @@ public class AnalyzerServiceImpl implements AnalyzerService {
                 .map(UserAction::getEventId)
                 .toList();
 
-        List<EventSimilarity> eventSimilarities = eventSimilarityRepository.findSimilarNotViewedByUser(viewedEventIds, // список событий с большим сходством с которым не взаимодействовал пользователь
-                userId, max);
+        List<EventSimilarity> eventSimilarities = similarityGraph.isReady() // список событий с большим сходством с которым не взаимодействовал пользователь
+                ? findSimilarNotViewedInGraph(viewedEventIds, userInteractions.get(userId), max)
+                : eventSimilarityRepository.findSimilarNotViewedByUser(viewedEventIds, userId, max);
 
         List<EventSimilarity> similarEvents = eventSimilarities.stream() // список событий с наибольшими оценками впереди ограниченные max с которым не взаимодействовал пользователь
                 .sorted(Comparator.comparing(EventSimilarity::getScore).reversed()).limit(max).toList();
@@ -174,7 +200,9 @@ public class AnalyzerServiceImpl implements AnalyzerService {
 
     public Map<Long, List<EventSimilarity>> groupViewedNeighbors(List<Long> eventIds, long userId) {
 
-        List<EventSimilarity> similarities = eventSimilarityRepository.findViewedNeighbors(eventIds, userId); // получаем все подходящие связи
+        List<EventSimilarity> similarities = similarityGraph.isReady() // получаем все подходящие связи
+                ? findViewedNeighborsInGraph(eventIds, userInteractions.get(userId))
+                : eventSimilarityRepository.findViewedNeighbors(eventIds, userId);
 
         Map<Long, List<EventSimilarity>> grouped = new LinkedHashMap<>(); // группируем просмотренных соседей, сохраняя порядок
 
@@ -192,6 +220,41 @@ public class AnalyzerServiceImpl implements AnalyzerService {
         return grouped;
     }
 
+    // то же, что findSimilarNotViewedByUser: соседи просмотренных мероприятий без взаимодействия пользователя
+    private List<EventSimilarity> findSimilarNotViewedInGraph(List<Long> viewedEventIds, long[] interacted, long max) {
+        int limit = (int) Math.min(Math.max(max, 0), Integer.MAX_VALUE);
+        List<EventSimilarity> similarities = new ArrayList<>();
+        for (Long eventId : new LinkedHashSet<>(viewedEventIds)) { // у каждого хватит первых limit соседей
+            SimilarityGraph.Neighbours similar = similarityGraph.getSimilarEvents(eventId,
+                    id -> UserInteractions.contains(interacted, id), limit);
+            addSimilarities(similarities, eventId, similar);
+        }
+        similarities.sort(Comparator.comparing(EventSimilarity::getScore).reversed());
+        return similarities.subList(0, Math.min(limit, similarities.size()));
+    }
+
+    // то же, что findViewedNeighbors: соседи кандидатов, с которыми пользователь взаимодействовал
+    private List<EventSimilarity> findViewedNeighborsInGraph(List<Long> eventIds, long[] interacted) {
+        List<EventSimilarity> similarities = new ArrayList<>();
+        for (Long eventId : new LinkedHashSet<>(eventIds)) {
+            SimilarityGraph.Neighbours viewed = similarityGraph.getSimilarEvents(eventId,
+                    id -> !UserInteractions.contains(interacted, id), Integer.MAX_VALUE);
+            addSimilarities(similarities, eventId, viewed);
+        }
+        return similarities;
+    }
+
+    private static void addSimilarities(List<EventSimilarity> similarities, long eventId,
+                                        SimilarityGraph.Neighbours neighbours) {
+        for (int i = 0; i < neighbours.size(); i++) {
+            similarities.add(EventSimilarity.builder()
+                    .eventA(eventId)
+                    .eventB(neighbours.getEventId(i))
+                    .score(neighbours.getScore(i))
+                    .build());
+        }
+    }
+
     public List<RecommendedEventProto> toRecommendedEventProtos(Map<Long, Double> predictedRatings, long maxResults) {
 
         return predictedRatings.entrySet().stream()
@@ -11,9 +11,13 @@ import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.WakeupException;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import ru.practicum.analyzer.mapper.AnalyzerMapper;
 import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityBatchAvro;
+import ru.practicum.ewm.stats.avro.EventSimilarityEntryAvro;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,27 +33,49 @@ public class EventSimilarityService {
     private long consumeAttemptTimeout;
     private static final Map<TopicPartition, OffsetAndMetadata> currentOffsets = new HashMap<>();
     private final AnalyzerService analyzerService;
+    private final SimilarityGraph similarityGraph;
 
     public void start() {
         try {
             eventConsumer.subscribe(List.of(topic));
             Runtime.getRuntime().addShutdownHook(new Thread(eventConsumer::wakeup));
 
-            int count = 0;
             while (true) {
                 ConsumerRecords<Long, SpecificRecordBase> consumerRecords = eventConsumer.poll(
                         Duration.ofMillis(consumeAttemptTimeout));
+                if (consumerRecords.isEmpty()) {
+                    continue;
+                }
+
+                List<EventSimilarityAvro> eventSimilarities = new ArrayList<>(consumerRecords.count());
                 for (ConsumerRecord<Long, SpecificRecordBase> record : consumerRecords) {
+                    if (record.value() instanceof EventSimilarityBatchAvro eventSimilarityBatch) {
+                        log.info("Получена пачка коэффициентов сходства от Aggregator: {} пар, {}",
+                                eventSimilarityBatch.getSimilarities().size(), eventSimilarityBatch.getTimestamp());
+                        for (EventSimilarityEntryAvro entry : eventSimilarityBatch.getSimilarities()) {
+                            eventSimilarities.add(AnalyzerMapper.mapToEventSimilarityAvro(entry,
+                                    eventSimilarityBatch.getTimestamp()));
+                        }
+                        continue;
+                    }
+
                     EventSimilarityAvro eventSimilarityAvro = (EventSimilarityAvro) record.value();
-                    log.info("Получен коэффициент сходства мероприятий от Aggregator {}, {}, {}, {}",
+                    log.debug("Получен коэффициент сходства мероприятий от Aggregator {}, {}, {}, {}",
                             eventSimilarityAvro.getEventA(), eventSimilarityAvro.getEventB(),
                             eventSimilarityAvro.getScore(), eventSimilarityAvro.getTimestamp());
-                    manageOffsets(record, count);
-                    count++;
+                    eventSimilarities.add(eventSimilarityAvro);
+                }
 
-                    analyzerService.saveEventSimilarity(eventSimilarityAvro);
+                analyzerService.saveEventSimilarities(eventSimilarities); // смещения фиксируются после записи пачки
+                similarityGraph.update(eventSimilarities); // граф меняется только после фиксации транзакции
+                for (ConsumerRecord<Long, SpecificRecordBase> record : consumerRecords) {
+                    manageOffsets(record);
                 }
-                eventConsumer.commitAsync();
+                eventConsumer.commitAsync(currentOffsets, (offsets, exception) -> {
+                    if (exception != null) {
+                        log.warn("Ошибка при фиксации смещения : {}", offsets, exception);
+                    }
+                });
             }
         } catch (WakeupException ignored) {
         } catch (Exception e) {
@@ -64,18 +90,10 @@ public class EventSimilarityService {
         }
     }
 
-    private void manageOffsets(ConsumerRecord<Long, SpecificRecordBase> record, int count) {
+    private void manageOffsets(ConsumerRecord<Long, SpecificRecordBase> record) {
         currentOffsets.put(
                 new TopicPartition(record.topic(), record.partition()),
                 new OffsetAndMetadata(record.offset() + 1)
         );
-
-        if (count % 10 == 0) {
-            eventConsumer.commitAsync(currentOffsets, (offsets, exception) -> {
-                if (exception != null) {
-                    log.warn("Ошибка при фиксации смещения : {}", offsets, exception);
-                }
-            });
-        }
     }
-}
\ No newline at end of file
+}
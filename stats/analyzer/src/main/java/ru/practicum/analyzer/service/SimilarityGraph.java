@@ -0,0 +1,315 @@
+package ru.practicum.analyzer.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import ru.practicum.ewm.stats.avro.EventSimilarityAvro;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+
+/**
+ * Граф сходства мероприятий в памяти: для каждого мероприятия соседи отсортированы по убыванию коэффициента
+ * в примитивных массивах. Список соседей неизменяемый и целиком заменяется при обновлении, поэтому чтение
+ * идёт без блокировок. Граф заполняется из базы при старте и обновляется из топика коэффициентов сходства
+ * после записи пачки в базу; обновляет его один поток. Как и пакетная запись в базу, ребро заменяется,
+ * только если его метка времени не новее пришедшей;
+ * нулевой коэффициент удаляет ребро. У мероприятия хранится не больше graph-max-neighbours соседей:
+ * при загрузке берутся лучшие из базы, при обновлении лишние с наименьшим коэффициентом отбрасываются.
+ */
+@Component
+@Slf4j
+public class SimilarityGraph {
+    // каждая пара читается дважды, со стороны обоих мероприятий, поэтому соседи мероприятия идут подряд
+    // уже отсортированными, и массивы строятся за один проход без промежуточных коллекций
+    private static final String LOAD = """
+            SELECT eventA_id AS event_id, eventB_id AS neighbour_id, score, timestamp_at FROM events_similarity
+            UNION ALL
+            SELECT eventB_id, eventA_id, score, timestamp_at FROM events_similarity
+            ORDER BY event_id, score DESC, neighbour_id
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    @Getter
+    @Value("${analyzer.similarity.graph-enabled:true}")
+    private boolean enabled;
+    @Value("${analyzer.similarity.graph-fetch-size:10000}")
+    private int fetchSize;
+    @Value("${analyzer.similarity.graph-max-neighbours:100}")
+    private int maxNeighbours; // 0 - без ограничения
+    private final Map<Long, Neighbours> neighbours = new ConcurrentHashMap<>();
+    private final AtomicLong edges = new AtomicLong();
+    private volatile boolean ready; // до загрузки из базы запросы обслуживаются SQL
+
+    public SimilarityGraph(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        Gauge.builder("analyzer.similarity-graph.events", neighbours, Map::size)
+                .description("Число мероприятий в графе сходства")
+                .register(meterRegistry);
+        Gauge.builder("analyzer.similarity-graph.edges", edges, count -> count.get() / 2.0)
+                .description("Число пар в графе сходства")
+                .register(meterRegistry);
+    }
+
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    @Transactional(readOnly = true)
+    public void load() { // вызывается до запуска consumer, поэтому обновления из топика ложатся поверх загруженного
+        if (!enabled) {
+            return;
+        }
+        long started = System.currentTimeMillis();
+        JdbcTemplate cursorTemplate = new JdbcTemplate(jdbcTemplate.getDataSource()); // общий шаблон не меняется
+        cursorTemplate.setFetchSize(fetchSize); // Postgres читает курсором только внутри транзакции
+        Loader loader = new Loader();
+        cursorTemplate.query(LOAD, loader);
+        loader.finish();
+        ready = true;
+        log.info("Граф сходства загружен из базы за {} мс: мероприятий {}, пар {}",
+                System.currentTimeMillis() - started, neighbours.size(), edges.get() / 2);
+    }
+
+    public void update(List<EventSimilarityAvro> eventSimilarities) {
+        if (!enabled) {
+            return;
+        }
+        Map<Long, Map<Long, Edge>> changes = new HashMap<>();
+        for (EventSimilarityAvro eventSimilarity : eventSimilarities) { // в пачке побеждает последнее значение пары
+            Edge edge = new Edge(eventSimilarity.getScore(), eventSimilarity.getTimestamp().toEpochMilli());
+            changes.computeIfAbsent(eventSimilarity.getEventA(), k -> new HashMap<>())
+                    .put(eventSimilarity.getEventB(), edge);
+            changes.computeIfAbsent(eventSimilarity.getEventB(), k -> new HashMap<>())
+                    .put(eventSimilarity.getEventA(), edge);
+        }
+        apply(changes);
+    }
+
+    // max самых похожих соседей, кроме отфильтрованных exclude, по убыванию коэффициента
+    public Neighbours getSimilarEvents(long eventId, LongPredicate exclude, int max) {
+        Neighbours all = neighbours.getOrDefault(eventId, Neighbours.EMPTY);
+        long[] ids = new long[Math.min(max, all.size())];
+        double[] scores = new double[ids.length];
+        long[] timestamps = new long[ids.length];
+        int count = 0;
+        for (int i = 0; i < all.size() && count < ids.length; i++) {
+            if (!exclude.test(all.ids[i])) {
+                ids[count] = all.ids[i];
+                scores[count] = all.scores[i];
+                timestamps[count] = all.timestamps[i];
+                count++;
+            }
+        }
+        return new Neighbours(ids, scores, timestamps, count);
+    }
+
+    private void apply(Map<Long, Map<Long, Edge>> changes) {
+        changes.forEach((eventId, changed) -> {
+            Neighbours old = neighbours.getOrDefault(eventId, Neighbours.EMPTY);
+            Neighbours merged = old.merge(changed).limit(maxNeighbours);
+            neighbours.put(eventId, merged);
+            edges.addAndGet(merged.size() - old.size()); // каждая пара учтена у обоих мероприятий
+        });
+    }
+
+    private class Loader implements RowCallbackHandler { // собирает соседей текущего мероприятия в массивы
+        private long eventId;
+        private long[] ids = new long[16];
+        private double[] scores = new double[16];
+        private long[] timestamps = new long[16];
+        private int count;
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            long rowEventId = rs.getLong(1);
+            if (count > 0 && rowEventId != eventId) {
+                finish();
+            }
+            eventId = rowEventId;
+            if (maxNeighbours > 0 && count >= maxNeighbours) { // строки отсортированы, остальные соседи слабее
+                return;
+            }
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count << 1);
+                scores = Arrays.copyOf(scores, count << 1);
+                timestamps = Arrays.copyOf(timestamps, count << 1);
+            }
+            ids[count] = rs.getLong(2);
+            scores[count] = rs.getDouble(3);
+            timestamps[count++] = rs.getTimestamp(4).getTime();
+        }
+
+        private void finish() {
+            if (count == 0) {
+                return;
+            }
+            neighbours.put(eventId, new Neighbours(Arrays.copyOf(ids, count), Arrays.copyOf(scores, count),
+                    Arrays.copyOf(timestamps, count), count));
+            edges.addAndGet(count);
+            count = 0;
+        }
+    }
+
+    private static class Edge {
+        private final double score;
+        private final long timestamp; // мс, метка времени записи коэффициента
+
+        private Edge(double score, long timestamp) {
+            this.score = score;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Соседи мероприятия: идентификаторы, коэффициенты и их метки времени, отсортированные по убыванию
+     * коэффициента, при равенстве - по возрастанию идентификатора.
+     */
+    public static class Neighbours {
+        private static final Neighbours EMPTY = new Neighbours(new long[0], new double[0], new long[0], 0);
+
+        private final long[] ids;
+        private final double[] scores;
+        private final long[] timestamps;
+        private final int size;
+
+        private Neighbours(long[] ids, double[] scores, long[] timestamps, int size) {
+            this.ids = ids;
+            this.scores = scores;
+            this.timestamps = timestamps;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getEventId(int i) {
+            return ids[i];
+        }
+
+        public double getScore(int i) {
+            return scores[i];
+        }
+
+        // старые соседи уже отсортированы, поэтому сортируются только изменения, а затем два списка сливаются;
+        // изменение, которое старше хранимого ребра, отбрасывается, как и в запросе пакетной записи
+        private Neighbours merge(Map<Long, Edge> changed) {
+            long[] changedById = new long[changed.size()]; // для поиска без упаковки идентификаторов
+            int k = 0;
+            for (long eventId : changed.keySet()) {
+                changedById[k++] = eventId;
+            }
+            Arrays.sort(changedById);
+            Edge[] edgesById = new Edge[k];
+            for (int i = 0; i < k; i++) {
+                edgesById[i] = changed.get(changedById[i]);
+            }
+
+            boolean[] rejected = new boolean[k];
+            for (int i = 0; i < size; i++) {
+                int found = Arrays.binarySearch(changedById, ids[i]);
+                if (found >= 0 && timestamps[i] > edgesById[found].timestamp) {
+                    rejected[found] = true;
+                }
+            }
+
+            long[] changedIds = new long[k];
+            double[] changedScores = new double[k];
+            long[] changedTimestamps = new long[k];
+            int m = 0;
+            for (int i = 0; i < k; i++) {
+                if (!rejected[i] && edgesById[i].score > 0) { // отозванная пара только удаляет старое ребро
+                    changedIds[m] = changedById[i];
+                    changedScores[m] = edgesById[i].score;
+                    changedTimestamps[m++] = edgesById[i].timestamp;
+                }
+            }
+            sort(changedIds, changedScores, changedTimestamps, 0, m, new long[m], new double[m], new long[m]);
+
+            long[] mergedIds = new long[size + m];
+            double[] mergedScores = new double[size + m];
+            long[] mergedTimestamps = new long[size + m];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < size || j < m) {
+                if (i < size) {
+                    int found = Arrays.binarySearch(changedById, ids[i]);
+                    if (found >= 0 && !rejected[found]) { // старое значение пары заменяется новым
+                        i++;
+                        continue;
+                    }
+                }
+                if (j == m || (i < size && before(ids[i], scores[i], changedIds[j], changedScores[j]))) {
+                    mergedIds[n] = ids[i];
+                    mergedScores[n] = scores[i];
+                    mergedTimestamps[n++] = timestamps[i++];
+                } else {
+                    mergedIds[n] = changedIds[j];
+                    mergedScores[n] = changedScores[j];
+                    mergedTimestamps[n++] = changedTimestamps[j++];
+                }
+            }
+            if (n < mergedIds.length) {
+                mergedIds = Arrays.copyOf(mergedIds, n);
+                mergedScores = Arrays.copyOf(mergedScores, n);
+                mergedTimestamps = Arrays.copyOf(mergedTimestamps, n);
+            }
+            return new Neighbours(mergedIds, mergedScores, mergedTimestamps, n);
+        }
+
+        private Neighbours limit(int max) { // лишние соседи в конце списка, у них наименьшие коэффициенты
+            if (max <= 0 || size <= max) {
+                return this;
+            }
+            return new Neighbours(Arrays.copyOf(ids, max), Arrays.copyOf(scores, max), Arrays.copyOf(timestamps, max),
+                    max);
+        }
+
+        private static boolean before(long idA, double scoreA, long idB, double scoreB) {
+            int byScore = Double.compare(scoreB, scoreA);
+            return byScore < 0 || (byScore == 0 && idA < idB);
+        }
+
+        private static void sort(long[] ids, double[] scores, long[] timestamps, int from, int to,
+                                 long[] tmpIds, double[] tmpScores, long[] tmpTimestamps) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sort(ids, scores, timestamps, from, mid, tmpIds, tmpScores, tmpTimestamps);
+            sort(ids, scores, timestamps, mid, to, tmpIds, tmpScores, tmpTimestamps);
+            int i = from;
+            int j = mid;
+            int n = from;
+            while (i < mid || j < to) {
+                if (j == to || (i < mid && !before(ids[j], scores[j], ids[i], scores[i]))) {
+                    tmpIds[n] = ids[i];
+                    tmpScores[n] = scores[i];
+                    tmpTimestamps[n++] = timestamps[i++];
+                } else {
+                    tmpIds[n] = ids[j];
+                    tmpScores[n] = scores[j];
+                    tmpTimestamps[n++] = timestamps[j++];
+                }
+            }
+            System.arraycopy(tmpIds, from, ids, from, to - from);
+            System.arraycopy(tmpScores, from, scores, from, to - from);
+            System.arraycopy(tmpTimestamps, from, timestamps, from, to - from);
+        }
+    }
+}
@@ -14,6 +14,7 @@ import org.springframework.stereotype.Service;
 import ru.practicum.ewm.stats.avro.UserActionAvro;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +30,7 @@ public class UserActionService implements Runnable {
     private long consumeAttemptTimeout;
     private static final Map<TopicPartition, OffsetAndMetadata> currentOffsets = new HashMap<>();
     private final AnalyzerServiceImpl analyzerService;
+    private final UserInteractions userInteractions;
 
     @Override
     public void run() {
@@ -36,21 +38,32 @@ public class UserActionService implements Runnable {
             userConsumer.subscribe(List.of(topic));
             Runtime.getRuntime().addShutdownHook(new Thread(userConsumer::wakeup));
 
-            int count = 0;
             while (true) {
                 ConsumerRecords<Long, SpecificRecordBase> consumerRecords = userConsumer.poll(
                         Duration.ofMillis(consumeAttemptTimeout));
+                if (consumerRecords.isEmpty()) {
+                    continue;
+                }
+
+                List<UserActionAvro> userActions = new ArrayList<>(consumerRecords.count());
                 for (ConsumerRecord<Long, SpecificRecordBase> record : consumerRecords) {
                     UserActionAvro userAction = (UserActionAvro) record.value();
-                    log.info("Получено действие пользователя от Collector {}, {}, {}, {}",
+                    log.debug("Получено действие пользователя от Collector {}, {}, {}, {}",
                             userAction.getUserId(), userAction.getEventId(), userAction.getActionType(),
                             userAction.getTimestamp());
+                    userActions.add(userAction);
+                }
 
-                    manageOffsets(record, count);
-                    count++;
-                    analyzerService.saveUserAction(userAction);
+                analyzerService.saveUserActions(userActions); // смещения фиксируются после фиксации транзакции
+                userInteractions.update(userActions);
+                for (ConsumerRecord<Long, SpecificRecordBase> record : consumerRecords) {
+                    manageOffsets(record);
                 }
-                userConsumer.commitAsync();
+                userConsumer.commitAsync(currentOffsets, (offsets, exception) -> {
+                    if (exception != null) {
+                        log.warn("Ошибка при фиксации смещения : {}", offsets, exception);
+                    }
+                });
             }
         } catch (WakeupException ignored) {
         } catch (Exception e) {
@@ -65,18 +78,10 @@ public class UserActionService implements Runnable {
         }
     }
 
-    private void manageOffsets(ConsumerRecord<Long, SpecificRecordBase> record, int count) {
+    private void manageOffsets(ConsumerRecord<Long, SpecificRecordBase> record) {
         currentOffsets.put(
                 new TopicPartition(record.topic(), record.partition()),
                 new OffsetAndMetadata(record.offset() + 1)
         );
-
-        if (count % 10 == 0) {
-            userConsumer.commitAsync(currentOffsets, (offsets, exception) -> {
-                if (exception != null) {
-                    log.warn("Ошибка при фиксации смещения : {}", offsets, exception);
-                }
-            });
-        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,196 @@
+package ru.practicum.analyzer.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.analyzer.repositories.UserActionRepository;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Мероприятия, с которыми взаимодействовал пользователь, в памяти: отсортированный массив идентификаторов
+ * на пользователя. Число пользователей и общее число идентификаторов ограничены, при превышении вытесняются
+ * давно не запрашиваемые пользователи; вытесненный или ещё не загруженный пользователь читается из базы.
+ * Загруженные наборы дополняются из топика действий после фиксации транзакции с пачкой.
+ * Пользователи разбиты на сегменты со своей блокировкой и своим порядком LRU, поэтому запросы разных
+ * пользователей почти не ждут друг друга; ограничения делятся между сегментами поровну.
+ */
+@Component
+@Slf4j
+public class UserInteractions {
+    private static final int SEGMENTS = 64;
+    private static final int STRIPES = 1024; // полосы версий, по 16 на сегмент
+
+    private final UserActionRepository userActionRepository;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Counter hits;
+    private final Counter misses;
+
+    public UserInteractions(UserActionRepository userActionRepository, MeterRegistry meterRegistry,
+                            @Value("${analyzer.interactions.max-users:100000}") int maxUsers,
+                            @Value("${analyzer.interactions.max-events:10000000}") long maxEvents) {
+        this.userActionRepository = userActionRepository;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, (maxUsers + SEGMENTS - 1) / SEGMENTS),
+                    Math.max(1, (maxEvents + SEGMENTS - 1) / SEGMENTS));
+        }
+        Gauge.builder("analyzer.interactions.users", this, UserInteractions::cachedUsers)
+                .description("Число пользователей с набором мероприятий в памяти")
+                .register(meterRegistry);
+        Gauge.builder("analyzer.interactions.events", this, UserInteractions::cachedEvents)
+                .description("Число идентификаторов мероприятий в памяти")
+                .register(meterRegistry);
+        hits = Counter.builder("analyzer.interactions.lookups").tag("result", "hit").register(meterRegistry);
+        misses = Counter.builder("analyzer.interactions.lookups").tag("result", "miss").register(meterRegistry);
+    }
+
+    public static boolean contains(long[] events, long eventId) {
+        return Arrays.binarySearch(events, eventId) >= 0;
+    }
+
+    // взаимодействовал ли пользователь с мероприятием; при промахе набор загружается и кэшируется, как в get
+    public boolean hasInteracted(long userId, long eventId) {
+        return contains(get(userId), eventId);
+    }
+
+    public long[] get(long userId) { // отсортированный массив, изменять его нельзя
+        int stripe = stripe(userId);
+        Segment segment = segments[stripe / (STRIPES / SEGMENTS)];
+        long version;
+        synchronized (segment) {
+            long[] events = segment.users.get(userId);
+            if (events != null) {
+                hits.increment();
+                return events;
+            }
+            version = segment.versions[stripe % (STRIPES / SEGMENTS)];
+        }
+        misses.increment();
+
+        long[] events = userActionRepository.findEventIdsByUserId(userId).stream()
+                .mapToLong(Long::longValue)
+                .sorted()
+                .distinct()
+                .toArray();
+        synchronized (segment) {
+            if (segment.versions[stripe % (STRIPES / SEGMENTS)] == version && !segment.users.containsKey(userId)) {
+                segment.users.put(userId, events);
+                segment.events += events.length;
+                segment.evict();
+            }
+        }
+        return events;
+    }
+
+    public void update(List<UserActionAvro> userActions) { // вызывается после фиксации транзакции с пачкой
+        Map<Long, long[]> added = new HashMap<>();
+        for (UserActionAvro userAction : userActions) {
+            added.merge(userAction.getUserId(), new long[]{userAction.getEventId()}, UserInteractions::concat);
+        }
+
+        added.forEach((userId, events) -> {
+            int stripe = stripe(userId);
+            Segment segment = segments[stripe / (STRIPES / SEGMENTS)];
+            synchronized (segment) {
+                segment.versions[stripe % (STRIPES / SEGMENTS)]++;
+                long[] old = segment.users.get(userId);
+                if (old == null) { // набор пользователя не загружен, его полностью прочитает следующий запрос
+                    return;
+                }
+                long[] merged = merge(old, events);
+                if (merged != old) {
+                    segment.users.put(userId, merged);
+                    segment.events += merged.length - old.length;
+                    segment.evict();
+                }
+            }
+        });
+    }
+
+    private int cachedUsers() {
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.users.size();
+            }
+        }
+        return count;
+    }
+
+    private long cachedEvents() {
+        long count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.events;
+            }
+        }
+        return count;
+    }
+
+    private static int stripe(long userId) {
+        int hash = Long.hashCode(userId);
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1); // подряд идущие id расходятся по сегментам
+    }
+
+    private static long[] concat(long[] a, long[] b) {
+        long[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static class Segment {
+        private final int maxUsers;
+        private final long maxEvents;
+        private final LinkedHashMap<Long, long[]> users = new LinkedHashMap<>(16, 0.75f, true); // порядок доступа для LRU
+        // номер изменения по группе пользователей: загрузка из базы, во время которой пришло обновление, не кэшируется
+        private final long[] versions = new long[STRIPES / SEGMENTS];
+        private long events;
+
+        private Segment(int maxUsers, long maxEvents) {
+            this.maxUsers = maxUsers;
+            this.maxEvents = maxEvents;
+        }
+
+        private void evict() {
+            Iterator<long[]> iterator = users.values().iterator();
+            while ((users.size() > maxUsers || events > maxEvents) && iterator.hasNext()) {
+                events -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    // новый массив, если добавились мероприятия, иначе старый
+    private static long[] merge(long[] sorted, long[] events) {
+        long[] missing = Arrays.stream(events)
+                .filter(eventId -> !contains(sorted, eventId))
+                .sorted()
+                .distinct()
+                .toArray();
+        if (missing.length == 0) {
+            return sorted;
+        }
+
+        long[] merged = new long[sorted.length + missing.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < sorted.length || j < missing.length) {
+            if (j == missing.length || (i < sorted.length && sorted[i] < missing[j])) {
+                merged[n++] = sorted[i++];
+            } else {
+                merged[n++] = missing[j++];
+            }
+        }
+        return merged;
+    }
+}
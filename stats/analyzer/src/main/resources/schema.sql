@@ -0,0 +1,31 @@
+-- Уникальные индексы, на которых работает ON CONFLICT пакетной записи.
+-- Скрипт выполняется после создания таблиц Hibernate; если индекса ещё нет (старая база, где Hibernate
+-- не смог добавить ограничение из-за дублей), сначала удаляются дубли, затем создаётся индекс.
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_indexes
+                   WHERE schemaname = 'public' AND indexname = 'uq_events_similarity_pair') THEN
+        -- из дублей пары остаётся самый свежий коэффициент, при равном времени - последняя запись
+        DELETE FROM events_similarity es
+        USING events_similarity newer
+        WHERE es.eventA_id = newer.eventA_id
+          AND es.eventB_id = newer.eventB_id
+          AND (es.timestamp_at < newer.timestamp_at
+               OR (es.timestamp_at = newer.timestamp_at AND es.id < newer.id));
+        CREATE UNIQUE INDEX uq_events_similarity_pair ON events_similarity (eventA_id, eventB_id);
+    END IF;
+
+    IF NOT EXISTS (SELECT 1 FROM pg_indexes
+                   WHERE schemaname = 'public' AND indexname = 'uq_user_actions_user_event') THEN
+        -- из дублей действия остаётся максимальный вес, при равном весе - самое свежее, затем последняя запись
+        DELETE FROM user_actions ua
+        USING user_actions better
+        WHERE ua.user_id = better.user_id
+          AND ua.event_id = better.event_id
+          AND (ua.weight < better.weight
+               OR (ua.weight = better.weight AND ua.timestamp_at < better.timestamp_at)
+               OR (ua.weight = better.weight AND ua.timestamp_at = better.timestamp_at AND ua.id < better.id));
+        CREATE UNIQUE INDEX uq_user_actions_user_event ON user_actions (user_id, event_id);
+    END IF;
+END $$;
@@ -9,6 +9,7 @@ import org.apache.kafka.clients.producer.ProducerConfig;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import ru.practicum.ewm.stats.serialization.action.UserActionCodecSerializer;
 
 import java.util.Properties;
 
@@ -19,6 +20,12 @@ public class CollectorKafkaConfig {
     String bootstrapServer;
     String keySerializer;
     String valueSerializer;
+    String valueCodec = "avro"; // формат значения записей, см. UserActionCodecs
+    String acks;
+    String lingerMs;
+    String batchSize;
+    String compressionType;
+    String maxBlockMs;
 
     @Bean
     public Producer<Long, SpecificRecordBase> producer() {
@@ -26,6 +33,12 @@ public class CollectorKafkaConfig {
         config.setProperty(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServer);
         config.setProperty(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, keySerializer);
         config.setProperty(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, valueSerializer);
+        config.setProperty(UserActionCodecSerializer.CODEC_CONFIG, valueCodec);
+        config.setProperty(ProducerConfig.ACKS_CONFIG, acks);
+        config.setProperty(ProducerConfig.LINGER_MS_CONFIG, lingerMs);
+        config.setProperty(ProducerConfig.BATCH_SIZE_CONFIG, batchSize);
+        config.setProperty(ProducerConfig.COMPRESSION_TYPE_CONFIG, compressionType);
+        config.setProperty(ProducerConfig.MAX_BLOCK_MS_CONFIG, maxBlockMs);
         return new KafkaProducer<>(config);
     }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package ru.practicum.collector.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Getter
+@Setter
+@ConfigurationProperties(value = "collector.spool")
+public class SpoolProperties {
+    private boolean enabled; // писать действия на диск, если Kafka недоступна или перегружена
+    private String dir = "collector-data/spool"; // каталог сегментов
+    private int segmentSizeBytes = 64 * 1024 * 1024; // размер одного отображаемого в память сегмента
+    private long maxSizeBytes = 1024L * 1024 * 1024; // предел суммарного размера сегментов
+    private int replayBatchSize = 1000; // сколько действий отправлять в Kafka за один шаг воспроизведения
+    private long idleMs = 100; // пауза, когда журнал пуст
+    private long retryBackoffMs = 1000; // пауза после неудачной отправки
+}
@@ -1,35 +0,0 @@
-package ru.practicum.collector.serializer;
-
-
-import org.apache.avro.Schema;
-import org.apache.avro.io.BinaryEncoder;
-import org.apache.avro.io.DatumWriter;
-import org.apache.avro.io.EncoderFactory;
-import org.apache.avro.specific.SpecificDatumWriter;
-import org.apache.avro.specific.SpecificRecordBase;
-import org.apache.kafka.common.errors.SerializationException;
-import org.apache.kafka.common.serialization.Serializer;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-
-public class CollectorSerializer implements Serializer<SpecificRecordBase> {
-    private final EncoderFactory encoderFactory = EncoderFactory.get();
-    private final Map<Schema, DatumWriter<SpecificRecordBase>> writerCash = new HashMap<>();
-
-    @Override
-    public byte[] serialize(String topic, SpecificRecordBase data) {
-        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            BinaryEncoder encoder = encoderFactory.binaryEncoder(outputStream, null);
-            DatumWriter<SpecificRecordBase> datumWriter = writerCash.computeIfAbsent(data.getSchema(),
-                    SpecificDatumWriter::new);
-            datumWriter.write(data, encoder);
-            encoder.flush();
-            return outputStream.toByteArray();
-        } catch (IOException e) {
-            throw new SerializationException("Ошибка сериализации данных в топик [" + topic + "]", e);
-        }
-    }
-}
\ No newline at end of file
@@ -0,0 +1,131 @@
+package ru.practicum.collector.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.grpc.stats.action.ActionTypeProto;
+import ru.practicum.grpc.stats.action.UserActionProto;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Отбрасывает действия, которые не могут повысить вес пользователя для мероприятия:
+ * агрегатор хранит максимальный вес, поэтому повторный просмотр или просмотр после лайка ничего не меняют.
+ * Для пары (пользователь, мероприятие) запоминается самое весомое действие за окно window-ms.
+ * Окно разбито на два поколения: текущее и предыдущее; поколение сменяется по времени или по числу пар,
+ * поэтому память ограничена, а пара забывается не раньше чем через половину окна.
+ * Окно должно быть много короче периода полураспада весов в агрегаторе, иначе более позднее действие
+ * того же типа могло бы повысить вес.
+ */
+@Component
+public class ActionDeduplicator {
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    @Value("${collector.dedup.enabled:false}")
+    private boolean enabled;
+    @Value("${collector.dedup.window-ms:600000}")
+    private long windowMs;
+    @Value("${collector.dedup.max-entries:1000000}")
+    private int maxEntries; // предел числа пар в одном поколении
+
+    private volatile Map<Long, Integer> current = new ConcurrentHashMap<>(); // ключ пары -> ранг самого весомого действия
+    private volatile Map<Long, Integer> previous = new ConcurrentHashMap<>();
+    private volatile long generationStartedAt = System.currentTimeMillis();
+    private final Map<ActionTypeProto, Counter> sentCounters = new EnumMap<>(ActionTypeProto.class);
+    private final Map<ActionTypeProto, Counter> droppedCounters = new EnumMap<>(ActionTypeProto.class);
+    private final Map<ActionTypeProto, Counter> failedCounters = new EnumMap<>(ActionTypeProto.class);
+
+    public ActionDeduplicator(MeterRegistry meterRegistry) {
+        for (ActionTypeProto actionType : ActionTypeProto.values()) {
+            if (actionType == ActionTypeProto.UNRECOGNIZED) {
+                continue;
+            }
+            sentCounters.put(actionType, meterRegistry.counter("collector.user-actions",
+                    "result", "sent", "action", actionType.name()));
+            droppedCounters.put(actionType, meterRegistry.counter("collector.user-actions",
+                    "result", "dropped", "action", actionType.name()));
+            failedCounters.put(actionType, meterRegistry.counter("collector.user-actions",
+                    "result", "failed", "action", actionType.name()));
+        }
+    }
+
+    public boolean shouldSend(UserActionProto userAction) { // false - действие не повысит вес, отправлять не нужно
+        if (!enabled || userAction.getActionType() == ActionTypeProto.UNRECOGNIZED) {
+            return true;
+        }
+        rotateIfDue();
+
+        long key = key(userAction.getUserId(), userAction.getEventId());
+        int rank = rank(userAction.getActionType());
+        Integer previousRank = previous.get(key);
+        boolean[] raised = new boolean[1];
+        current.compute(key, (k, seen) -> {
+            int max = Math.max(seen == null ? -1 : seen, previousRank == null ? -1 : previousRank);
+            raised[0] = rank > max;
+            return Math.max(rank, max);
+        });
+
+        if (!raised[0]) {
+            droppedCounters.get(userAction.getActionType()).increment();
+        }
+        return raised[0];
+    }
+
+    public void sent(UserActionProto userAction) { // запись подтверждена брокером или журналом на диске
+        if (!enabled || userAction.getActionType() == ActionTypeProto.UNRECOGNIZED) {
+            return;
+        }
+        sentCounters.get(userAction.getActionType()).increment();
+    }
+
+    public void failed(UserActionProto userAction) { // запись не удалась, клиент получит ошибку и может повторить
+        if (!enabled || userAction.getActionType() == ActionTypeProto.UNRECOGNIZED) {
+            return;
+        }
+        failedCounters.get(userAction.getActionType()).increment();
+        forget(userAction);
+    }
+
+    public void forget(UserActionProto userAction) { // действие не записано, пара снова может быть отправлена
+        if (!enabled || userAction.getActionType() == ActionTypeProto.UNRECOGNIZED) {
+            return;
+        }
+        int rank = rank(userAction.getActionType());
+        current.computeIfPresent(key(userAction.getUserId(), userAction.getEventId()),
+                (k, seen) -> seen == rank ? null : seen);
+    }
+
+    private void rotateIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - generationStartedAt < windowMs / 2 && current.size() < maxEntries) {
+            return;
+        }
+        synchronized (this) {
+            if (now - generationStartedAt < windowMs / 2 && current.size() < maxEntries) {
+                return;
+            }
+            previous = current;
+            current = new ConcurrentHashMap<>();
+            generationStartedAt = now;
+        }
+    }
+
+    private static int rank(ActionTypeProto actionType) { // порядок совпадает с порядком весов действий
+        return switch (actionType) {
+            case ACTION_VIEW -> 0;
+            case ACTION_REGISTER -> 1;
+            case ACTION_LIKE -> 2;
+            case UNRECOGNIZED -> throw new IllegalArgumentException("Нет такого действия");
+        };
+    }
+
+    private static long key(long userId, long eventId) { // финализатор SplitMix64, совпадения ключей пренебрежимо редки
+        long value = userId * PHI + eventId;
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,111 @@
+package ru.practicum.collector.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.grpc.stats.action.ActionTypeProto;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Окна неподтверждённых записей в Kafka по типам действий.
+ * В режиме сброса нагрузки у каждого типа своё окно, и просмотры не вытесняют заявки и лайки.
+ * Когда окно просмотров заполнено выше high-water или Kafka не справляется (действия идут в журнал),
+ * просмотры пропускаются с вероятностью view-sample-rate; при полном окне просмотр отбрасывается.
+ * Заявки и лайки не отбрасываются никогда: при полном окне они пишутся в журнал на диске.
+ * Без режима сброса нагрузки все типы делят одно окно max-in-flight.
+ */
+@Component
+public class PriorityLanes {
+    @Value("${collector.ack.max-in-flight:10000}")
+    private int maxInFlight;
+    @Value("${collector.shedding.enabled:false}")
+    private boolean enabled;
+    @Value("${collector.shedding.view-capacity:6000}")
+    private int viewCapacity;
+    @Value("${collector.shedding.register-capacity:2000}")
+    private int registerCapacity;
+    @Value("${collector.shedding.like-capacity:2000}")
+    private int likeCapacity;
+    @Value("${collector.shedding.view-high-water:0.5}")
+    private double viewHighWater; // доля окна просмотров, после которой просмотры прореживаются
+    @Value("${collector.shedding.view-sample-rate:0.1}")
+    private double viewSampleRate;
+
+    private final MeterRegistry meterRegistry;
+    private final Map<ActionTypeProto, Semaphore> lanes = new EnumMap<>(ActionTypeProto.class);
+    private final Map<ActionTypeProto, Integer> capacities = new EnumMap<>(ActionTypeProto.class);
+    private final Map<ActionTypeProto, Counter> shedCounters = new EnumMap<>(ActionTypeProto.class);
+
+    public PriorityLanes(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void init() {
+        Semaphore shared = new Semaphore(maxInFlight);
+        for (ActionTypeProto actionType : ActionTypeProto.values()) {
+            if (actionType == ActionTypeProto.UNRECOGNIZED) {
+                continue;
+            }
+            int capacity = !enabled ? maxInFlight : switch (actionType) {
+                case ACTION_VIEW -> viewCapacity;
+                case ACTION_REGISTER -> registerCapacity;
+                default -> likeCapacity;
+            };
+            Semaphore lane = enabled ? new Semaphore(capacity) : shared;
+            lanes.put(actionType, lane);
+            capacities.put(actionType, capacity);
+            shedCounters.put(actionType, meterRegistry.counter("collector.user-actions",
+                    "result", "shed", "action", actionType.name()));
+            if (enabled) {
+                Gauge.builder("collector.lane.in-flight", lane, l -> capacity - l.availablePermits())
+                        .tag("action", actionType.name())
+                        .register(meterRegistry);
+            }
+        }
+        if (!enabled) { // общее окно - одна метрика на все типы
+            Gauge.builder("collector.lane.in-flight", shared, l -> maxInFlight - l.availablePermits())
+                    .tag("action", "ALL")
+                    .register(meterRegistry);
+        }
+    }
+
+    public boolean shouldShed(ActionTypeProto actionType, boolean degraded) { // true - просмотр отброшен выборкой
+        if (!enabled || actionType != ActionTypeProto.ACTION_VIEW) {
+            return false;
+        }
+        Semaphore lane = lanes.get(actionType);
+        double load = 1.0 - (double) lane.availablePermits() / capacities.get(actionType);
+        if (!degraded && load < viewHighWater) {
+            return false;
+        }
+        if (ThreadLocalRandom.current().nextDouble() < viewSampleRate) {
+            return false;
+        }
+        shedCounters.get(actionType).increment();
+        return true;
+    }
+
+    public boolean shedOnFull(ActionTypeProto actionType) { // true - при полном окне действие отбрасывается
+        if (!enabled || actionType != ActionTypeProto.ACTION_VIEW) {
+            return false;
+        }
+        shedCounters.get(actionType).increment();
+        return true;
+    }
+
+    public boolean tryAcquire(ActionTypeProto actionType) {
+        return lanes.get(actionType).tryAcquire();
+    }
+
+    public void release(ActionTypeProto actionType) {
+        lanes.get(actionType).release();
+    }
+}
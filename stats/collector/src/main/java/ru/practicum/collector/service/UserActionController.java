@@ -9,24 +9,50 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import net.devh.boot.grpc.server.service.GrpcService;
 import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.RetriableException;
 import org.springframework.beans.factory.annotation.Value;
 import ru.practicum.collector.mapper.CollectorMapper;
+import ru.practicum.collector.spool.ActionSpool;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.grpc.stats.action.ActionTypeProto;
 import ru.practicum.grpc.stats.action.UserActionProto;
 import ru.practicum.grpc.stats.service.UserActionControllerGrpc;
 
 
 import java.time.Instant;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Принимает действия пользователей по gRPC и пишет их в Kafka.
+ * В режиме асинхронного подтверждения ответ клиенту отправляется из callback producer, когда запись
+ * подтверждена брокером; число неподтверждённых записей ограничено окном max-in-flight.
+ * Окна ведутся по типам действий (PriorityLanes), при перегрузке в первую очередь отбрасываются просмотры.
+ * Если окно заполнено или Kafka недоступна, действие пишется в журнал на диске, а при выключенном
+ * или переполненном журнале клиент сразу получает RESOURCE_EXHAUSTED.
+ */
 @GrpcService
 @Slf4j
 @RequiredArgsConstructor
 public class UserActionController extends UserActionControllerGrpc.UserActionControllerImplBase {
     private final Producer<Long, SpecificRecordBase> producer;
+    private final ActionSpool spool;
+    private final ActionDeduplicator deduplicator;
+    private final PriorityLanes lanes;
     @Value("${collector.kafka.topic-user-actions}")
     private String topic;
-
+    @Value("${collector.ack.async:true}")
+    private boolean asyncAck;
+    @Value("${collector.ack.max-in-flight:10000}")
+    private int maxInFlight;
+    @Value("${collector.ack.sync-timeout-ms:5000}")
+    private long syncTimeoutMs;
     @Override
     public void collectUserAction(UserActionProto userAction, StreamObserver<Empty> responseObserver) {
         try {
@@ -34,33 +60,222 @@ public class UserActionController extends UserActionControllerGrpc.UserActionCon
                             "timestamp = {}", userAction.getUserId(), userAction.getEventId(), userAction.getActionType(),
                     userAction.getTimestamp());
 
-            sendRecord(userAction);
-
-            responseObserver.onNext(Empty.getDefaultInstance());
-            responseObserver.onCompleted();
+            boolean accepted = sendRecord(userAction, (metadata, exception) -> {
+                if (exception != null) {
+                    log.warn("Ошибка записи действия пользователя в Kafka: {}", exception.getLocalizedMessage());
+                    responseObserver.onError(failure(exception));
+                    return;
+                }
+                responseObserver.onNext(Empty.getDefaultInstance());
+                responseObserver.onCompleted();
+            });
+            if (!accepted) {
+                responseObserver.onError(resourceExhausted());
+            }
         } catch (Exception e) {
             log.warn(e.getLocalizedMessage());
-            responseObserver.onError(new StatusRuntimeException(
-                    Status.INTERNAL
-                            .withDescription(e.getLocalizedMessage())
-                            .withCause(e)
-            ));
+            responseObserver.onError(internal(e));
         }
     }
 
-    private void sendRecord(UserActionProto userAction) {
-        if (userAction == null) {
-            log.warn("Попытка отправить null UserAction");
-            return;
+    @Override
+    public StreamObserver<UserActionProto> collectUserActions(StreamObserver<Empty> responseObserver) {
+        return new StreamObserver<>() {
+            private final AtomicInteger pending = new AtomicInteger(1); // единица снимается, когда клиент завершит поток
+            private final AtomicReference<StatusRuntimeException> failure = new AtomicReference<>();
+            private int count;
+
+            @Override
+            public void onNext(UserActionProto userAction) {
+                if (failure.get() != null) {
+                    return;
+                }
+                pending.incrementAndGet();
+                try {
+                    boolean accepted = sendRecord(userAction, (metadata, exception) -> {
+                        if (exception != null) {
+                            failure.compareAndSet(null, failure(exception));
+                        }
+                        complete();
+                    });
+                    if (!accepted) {
+                        failure.compareAndSet(null, resourceExhausted());
+                        pending.decrementAndGet();
+                    }
+                    count++;
+                } catch (Exception e) {
+                    log.warn(e.getLocalizedMessage());
+                    failure.compareAndSet(null, internal(e));
+                    pending.decrementAndGet();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) { // вызов отменён, ответ уже не нужен
+                log.warn("Поток действий пользователей прерван клиентом после {} действий: {}", count,
+                        t.getLocalizedMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                log.debug("Получено по gRPC потоком действий пользователей: {}", count);
+                complete();
+            }
+
+            private void complete() { // ответ уходит после подтверждения всех записей потока
+                if (pending.decrementAndGet() != 0) {
+                    return;
+                }
+                StatusRuntimeException exception = failure.get();
+                if (exception != null) {
+                    log.warn("Пачка действий пользователей не записана: {}", exception.getStatus());
+                    responseObserver.onError(exception);
+                    return;
+                }
+                responseObserver.onNext(Empty.getDefaultInstance());
+                responseObserver.onCompleted();
+            }
+        };
+    }
+
+    private boolean sendRecord(UserActionProto userAction, Callback callback) { // false - действие не принято
+        if (!deduplicator.shouldSend(userAction)) { // вес не изменится, действие подтверждается без записи
+            callback.onCompletion(null, null);
+            return true;
         }
-        ProducerRecord<Long, SpecificRecordBase> record = new ProducerRecord<>(
+
+        WriteResult result = WriteResult.REJECTED;
+        try {
+            UserActionAvro userActionAvro = CollectorMapper.mapToUserActionAvro(userAction);
+            result = writeRecord(userAction.getActionType(), userActionAvro, (metadata, exception) -> {
+                if (exception != null) {
+                    deduplicator.failed(userAction); // повтор клиента не должен считаться дублем
+                } else {
+                    deduplicator.sent(userAction); // учитывается только подтверждённая запись
+                }
+                callback.onCompletion(metadata, exception);
+            });
+            if (result == WriteResult.SHED) {
+                callback.onCompletion(null, null);
+            }
+            return result != WriteResult.REJECTED;
+        } catch (RuntimeException e) { // callback вызван не будет
+            deduplicator.failed(userAction);
+            throw e;
+        } finally {
+            if (result != WriteResult.WRITTEN) { // отброшенный просмотр учитывается только как сброшенный, следующий снова будет отправлен
+                deduplicator.forget(userAction);
+            }
+        }
+    }
+
+    private WriteResult writeRecord(ActionTypeProto actionType, UserActionAvro userActionAvro, Callback callback) {
+        boolean degraded = !spool.isEmpty();
+        if (lanes.shouldShed(actionType, degraded)) { // при перегрузке часть просмотров отбрасывается
+            return WriteResult.SHED;
+        }
+        if (degraded) { // пока журнал не воспроизведён, новые действия встают за ним
+            return spool(userActionAvro, callback);
+        }
+
+        if (!asyncAck) { // подтверждение после ответа брокера, поток gRPC ждёт не дольше sync-timeout-ms
+            try {
+                producer.send(createRecord(userActionAvro)).get(syncTimeoutMs, TimeUnit.MILLISECONDS);
+                callback.onCompletion(null, null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                callback.onCompletion(null, e);
+            } catch (ExecutionException | TimeoutException | RetriableException e) {
+                Exception cause = e instanceof ExecutionException && e.getCause() instanceof Exception c ? c : e;
+                // запись, не дождавшаяся ответа, может дойти позже; дубль из журнала безопасен, вес не изменится
+                if (isRetriable(cause) && spool.append(userActionAvro)) {
+                    callback.onCompletion(null, null);
+                } else {
+                    callback.onCompletion(null, cause);
+                }
+            }
+            return WriteResult.WRITTEN;
+        }
+
+        if (!lanes.tryAcquire(actionType)) { // Kafka не успевает подтверждать записи
+            if (lanes.shedOnFull(actionType)) {
+                return WriteResult.SHED;
+            }
+            return spool(userActionAvro, callback);
+        }
+        try {
+            producer.send(createRecord(userActionAvro), (metadata, exception) -> {
+                lanes.release(actionType);
+                if (exception instanceof RetriableException && spool.append(userActionAvro)) {
+                    callback.onCompletion(null, null);
+                    return;
+                }
+                callback.onCompletion(metadata, exception);
+            });
+        } catch (Exception e) { // исключение из send означает, что callback вызван не будет
+            lanes.release(actionType);
+            if (!(e instanceof RetriableException) || !spool.append(userActionAvro)) {
+                throw e;
+            }
+            callback.onCompletion(null, null);
+        }
+        return WriteResult.WRITTEN;
+    }
+
+    private WriteResult spool(UserActionAvro userAction, Callback callback) { // действие подтверждается после записи на диск
+        if (!spool.append(userAction)) {
+            return WriteResult.REJECTED;
+        }
+        callback.onCompletion(null, null);
+        return WriteResult.WRITTEN;
+    }
+
+    private ProducerRecord<Long, SpecificRecordBase> createRecord(UserActionAvro userAction) {
+        return new ProducerRecord<>(
                 topic,
                 null,
                 Instant.now().toEpochMilli(),
                 userAction.getUserId(),
-                CollectorMapper.mapToUserActionAvro(userAction)
+                userAction
+        );
+    }
+
+    private static boolean isRetriable(Exception e) {
+        return e instanceof RetriableException || e instanceof TimeoutException;
+    }
+
+    private static StatusRuntimeException failure(Exception e) { // временная ошибка Kafka - клиент может повторить
+        if (e instanceof TimeoutException) {
+            return new StatusRuntimeException(Status.DEADLINE_EXCEEDED
+                    .withDescription("Нет ответа Kafka за отведённое время")
+                    .withCause(e));
+        }
+        if (e instanceof RetriableException) {
+            return new StatusRuntimeException(Status.UNAVAILABLE
+                    .withDescription(e.getLocalizedMessage())
+                    .withCause(e));
+        }
+        return internal(e);
+    }
+
+    private static StatusRuntimeException internal(Exception e) {
+        return new StatusRuntimeException(
+                Status.INTERNAL
+                        .withDescription(e.getLocalizedMessage())
+                        .withCause(e)
         );
-        producer.send(record);
-        log.info("Отправлены данные по Avro о действиях пользователя value = {}", record.value());
     }
-}
\ No newline at end of file
+
+    private StatusRuntimeException resourceExhausted() {
+        return new StatusRuntimeException(
+                Status.RESOURCE_EXHAUSTED
+                        .withDescription("Превышено число неподтверждённых действий: " + maxInFlight)
+        );
+    }
+
+    private enum WriteResult {
+        WRITTEN, // записано в Kafka или в журнал
+        SHED, // просмотр отброшен сбросом нагрузки, callback не вызывается
+        REJECTED // не принято, клиент получит RESOURCE_EXHAUSTED
+    }
+}
@@ -0,0 +1,226 @@
+package ru.practicum.collector.spool;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import ru.practicum.collector.config.SpoolProperties;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.ewm.stats.serialization.action.FixedUserActionCodec;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Журнал действий пользователей на диске на время недоступности Kafka.
+ * Журнал состоит из сегментов фиксированного размера, отображённых в память; запись занимает 26 байт:
+ * признак (0 - свободно, 1 - записано, 2 - доставлено) и действие в фиксированном формате.
+ * Признак пишется после данных, поэтому после перезапуска читаются только полностью записанные действия.
+ * Сегмент удаляется, когда он заполнен и все его действия доставлены.
+ */
+@Component
+@Slf4j
+public class ActionSpool {
+    private static final int RECORD_SIZE = 1 + FixedUserActionCodec.SIZE;
+    private static final byte WRITTEN = 1;
+    private static final byte DELIVERED = 2;
+    private static final String SUFFIX = ".spool";
+
+    private final SpoolProperties properties;
+    private final FixedUserActionCodec codec = new FixedUserActionCodec();
+    private final Deque<Segment> segments = new ArrayDeque<>(); // от старых к новым, запись идёт в последний
+    private final Counter appendedCounter;
+    private final Counter rotationsCounter;
+    private volatile long pending; // записанные, но не доставленные действия
+    private volatile long sizeBytes;
+    private volatile int segmentCount;
+    private long nextSequence;
+
+    public ActionSpool(SpoolProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        appendedCounter = meterRegistry.counter("collector.spool.appended");
+        rotationsCounter = meterRegistry.counter("collector.spool.rotations");
+        Gauge.builder("collector.spool.pending", this, spool -> spool.pending).register(meterRegistry);
+        Gauge.builder("collector.spool.size", this, spool -> spool.sizeBytes).baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("collector.spool.segments", this, spool -> spool.segmentCount).register(meterRegistry);
+    }
+
+    @PostConstruct
+    synchronized void init() throws IOException {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        Path dir = Path.of(properties.getDir());
+        Files.createDirectories(dir);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            segments.addLast(Segment.open(file, properties.getSegmentSizeBytes()));
+            nextSequence = sequence + 1;
+        }
+        dropDelivered();
+        updateStats();
+        if (pending > 0) {
+            log.info("В журнале на диске {} недоставленных действий в {} сегментах", pending, segmentCount);
+        }
+    }
+
+    @PreDestroy
+    public void force() { // сбрасывает изменённые страницы сегментов на диск
+        List<MappedByteBuffer> dirty = new ArrayList<>();
+        synchronized (this) { // под блокировкой только выбор сегментов, append не ждёт записи на диск
+            for (Segment segment : segments) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment.buffer);
+                }
+            }
+        }
+        dirty.forEach(MappedByteBuffer::force); // файл удалённого за это время сегмента остаётся отображённым
+    }
+
+    public boolean isEmpty() {
+        return pending == 0;
+    }
+
+    public synchronized boolean append(UserActionAvro userAction) { // false - журнал выключен или переполнен
+        if (!properties.isEnabled()) {
+            return false;
+        }
+        try {
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.isFull()) {
+                if (sizeBytes + properties.getSegmentSizeBytes() > properties.getMaxSizeBytes()) {
+                    log.warn("Журнал действий на диске переполнен: {} байт", sizeBytes);
+                    return false;
+                }
+                Path file = Path.of(properties.getDir(), String.format("%020d%s", nextSequence, SUFFIX));
+                segment = Segment.open(file, properties.getSegmentSizeBytes());
+                nextSequence++;
+                segments.addLast(segment);
+                rotationsCounter.increment();
+            }
+
+            int offset = segment.writeIndex * RECORD_SIZE;
+            segment.buffer.put(offset + 1, codec.encode(segment.path.toString(), userAction));
+            segment.buffer.put(offset, WRITTEN);
+            segment.writeIndex++;
+            segment.dirty = true;
+            appendedCounter.increment();
+            updateStats();
+            return true;
+        } catch (IOException e) {
+            log.error("Ошибка записи действия в журнал на диске", e);
+            return false;
+        }
+    }
+
+    public synchronized List<UserActionAvro> readBatch(int maxSize) { // следующие недоставленные действия по порядку
+        List<UserActionAvro> batch = new ArrayList<>();
+        for (Segment segment : segments) {
+            for (int index = segment.readIndex; index < segment.writeIndex && batch.size() < maxSize; index++) {
+                batch.add(codec.decode(segment.path.toString(),
+                        segment.buffer.slice(index * RECORD_SIZE + 1, FixedUserActionCodec.SIZE)));
+            }
+            if (batch.size() == maxSize || !segment.isFull()) {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    public synchronized void markDelivered(int count) { // count первых действий из readBatch доставлены в Kafka
+        for (Segment segment : segments) {
+            while (count > 0 && segment.readIndex < segment.writeIndex) {
+                segment.buffer.put(segment.readIndex * RECORD_SIZE, DELIVERED);
+                segment.readIndex++;
+                segment.dirty = true;
+                count--;
+            }
+            if (count == 0) {
+                break;
+            }
+        }
+        dropDelivered();
+        updateStats();
+    }
+
+    private void dropDelivered() {
+        while (!segments.isEmpty()) {
+            Segment segment = segments.peekFirst();
+            if (!segment.isFull() || segment.readIndex < segment.writeIndex) {
+                return;
+            }
+            segments.pollFirst();
+            try {
+                Files.deleteIfExists(segment.path); // отображение освободится при сборке мусора
+            } catch (IOException e) {
+                log.warn("Не удалось удалить сегмент журнала {}", segment.path, e);
+            }
+        }
+    }
+
+    private void updateStats() {
+        long count = 0;
+        long size = 0;
+        for (Segment segment : segments) {
+            count += segment.writeIndex - segment.readIndex;
+            size += segment.buffer.capacity();
+        }
+        pending = count;
+        sizeBytes = size;
+        segmentCount = segments.size();
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final int capacity; // вместимость в действиях
+        private int writeIndex; // число записанных действий
+        private int readIndex; // первое недоставленное действие
+        private boolean dirty; // изменён после последнего force
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity() / RECORD_SIZE;
+        }
+
+        static Segment open(Path path, int defaultSize) throws IOException {
+            long size = Files.exists(path) && Files.size(path) > 0 ? Files.size(path) : defaultSize;
+            Segment segment;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+            while (segment.writeIndex < segment.capacity && segment.buffer.get(segment.writeIndex * RECORD_SIZE) != 0) {
+                segment.writeIndex++;
+            }
+            while (segment.readIndex < segment.writeIndex
+                    && segment.buffer.get(segment.readIndex * RECORD_SIZE) == DELIVERED) {
+                segment.readIndex++;
+            }
+            return segment;
+        }
+
+        boolean isFull() {
+            return writeIndex == capacity;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ru.practicum.collector.spool;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.practicum.collector.config.SpoolProperties;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Фоновое воспроизведение журнала на диске в Kafka в порядке записи.
+ * Пачка помечается доставленной только после подтверждения всех её записей; при ошибке пачка
+ * отправляется повторно после паузы, поэтому часть действий может прийти дважды. Повтор безопасен:
+ * вес действия пользователя для мероприятия берётся как максимум.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class SpoolDrainer {
+    private final ActionSpool spool;
+    private final SpoolProperties properties;
+    private final Producer<Long, SpecificRecordBase> producer;
+    private final MeterRegistry meterRegistry;
+    @Value("${collector.kafka.topic-user-actions}")
+    private String topic;
+    private Counter replayedCounter;
+    private Thread thread;
+    private volatile boolean running;
+
+    @PostConstruct
+    void start() {
+        replayedCounter = meterRegistry.counter("collector.spool.replayed");
+        if (!properties.isEnabled()) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "collector-spool-drainer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        thread.join(properties.getRetryBackoffMs());
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                List<UserActionAvro> batch = spool.readBatch(properties.getReplayBatchSize());
+                if (batch.isEmpty()) {
+                    Thread.sleep(properties.getIdleMs());
+                    continue;
+                }
+                spool.force(); // пока журнал не пуст, записанные страницы регулярно сбрасываются на диск
+                if (replay(batch)) {
+                    spool.markDelivered(batch.size());
+                    replayedCounter.increment(batch.size());
+                    log.debug("Из журнала на диске в Kafka отправлено {} действий", batch.size());
+                } else {
+                    Thread.sleep(properties.getRetryBackoffMs());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.error("Ошибка воспроизведения журнала действий", e);
+                try {
+                    Thread.sleep(properties.getRetryBackoffMs());
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean replay(List<UserActionAvro> batch) throws InterruptedException {
+        CountDownLatch acked = new CountDownLatch(batch.size());
+        AtomicBoolean failed = new AtomicBoolean();
+        for (UserActionAvro userAction : batch) {
+            try {
+                producer.send(new ProducerRecord<>(topic, null, Instant.now().toEpochMilli(), userAction.getUserId(),
+                        userAction), (metadata, exception) -> {
+                    if (exception != null) {
+                        failed.set(true);
+                    }
+                    acked.countDown();
+                });
+            } catch (Exception e) {
+                log.warn("Kafka недоступна, воспроизведение журнала отложено: {}", e.getLocalizedMessage());
+                return false;
+            }
+        }
+        acked.await(); // callback вызывается не позже delivery.timeout.ms
+        if (failed.get()) {
+            log.warn("Не все действия из журнала подтверждены Kafka, пачка будет отправлена повторно");
+        }
+        return !failed.get();
+    }
+}
@@ -0,0 +1,64 @@
+package ru.practicum.ewm.stats.serialization;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Десериализатор Avro для Kafka. Декодер переиспользуется в пределах потока,
+ * а перегрузка с ByteBuffer читает данные прямо из буфера выборки consumer без копирования в массив.
+ * Записи не переиспользуются: consumer десериализует всю выборку до того, как вернёт её из poll.
+ */
+public class AvroDeserializer<T extends SpecificRecordBase> implements Deserializer<T> {
+    private final DecoderFactory decoderFactory;
+    private final DatumReader<T> reader;
+    private final ThreadLocal<BinaryDecoder> decoders = new ThreadLocal<>();
+
+    public AvroDeserializer(Schema schema) {
+        this(DecoderFactory.get(), schema);
+    }
+
+    public AvroDeserializer(DecoderFactory decoderFactory, Schema schema) {
+        this.decoderFactory = decoderFactory;
+        reader = new SpecificDatumReader<>(schema);
+    }
+
+    @Override
+    public T deserialize(String topic, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        return decode(topic, data, 0, data.length);
+    }
+
+    @Override
+    public T deserialize(String topic, Headers headers, ByteBuffer data) {
+        if (data == null) {
+            return null;
+        }
+        if (data.hasArray()) {
+            return decode(topic, data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        byte[] copy = new byte[data.remaining()]; // буфер вне кучи приходится копировать
+        data.duplicate().get(copy);
+        return decode(topic, copy, 0, copy.length);
+    }
+
+    private T decode(String topic, byte[] data, int offset, int length) {
+        try {
+            BinaryDecoder decoder = decoderFactory.binaryDecoder(data, offset, length, decoders.get());
+            decoders.set(decoder);
+            return reader.read(null, decoder);
+        } catch (Exception e) {
+            throw new SerializationException("Ошибка десериализации данных из топика [" + topic + "]", e);
+        }
+    }
+}
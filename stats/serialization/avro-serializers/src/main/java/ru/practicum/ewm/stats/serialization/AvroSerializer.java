@@ -0,0 +1,71 @@
+package ru.practicum.ewm.stats.serialization;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecordBase;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Сериализатор Avro для Kafka. Буфер и кодировщик переиспользуются в пределах потока,
+ * поэтому на запись выделяется только итоговый массив байт; писатели схем кешируются потокобезопасно.
+ */
+public class AvroSerializer implements Serializer<SpecificRecordBase> {
+    private static final int MAX_RETAINED_BUFFER = 1 << 20; // буфер крупнее не держим за потоком после записи
+
+    private final EncoderFactory encoderFactory = EncoderFactory.get();
+    private final Map<Schema, DatumWriter<SpecificRecordBase>> writerCache = new ConcurrentHashMap<>();
+    private final ThreadLocal<EncoderContext> contexts = ThreadLocal.withInitial(EncoderContext::new);
+
+    @Override
+    public byte[] serialize(String topic, SpecificRecordBase data) {
+        if (data == null) {
+            return null;
+        }
+        EncoderContext context = contexts.get();
+        try {
+            context.encoder = encoderFactory.binaryEncoder(context.buffer, context.encoder);
+            DatumWriter<SpecificRecordBase> datumWriter = writerCache.computeIfAbsent(data.getSchema(),
+                    SpecificDatumWriter::new);
+            datumWriter.write(data, context.encoder);
+            context.encoder.flush();
+            return context.buffer.toByteArray();
+        } catch (IOException e) {
+            throw new SerializationException("Ошибка сериализации данных в топик [" + topic + "]", e);
+        } finally {
+            context.reset();
+        }
+    }
+
+    private static class EncoderContext {
+        private ReusableOutputStream buffer = new ReusableOutputStream();
+        private BinaryEncoder encoder;
+
+        void reset() {
+            if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+                buffer = new ReusableOutputStream();
+                encoder = null;
+            } else {
+                buffer.reset();
+            }
+        }
+    }
+
+    private static class ReusableOutputStream extends ByteArrayOutputStream {
+        ReusableOutputStream() {
+            super(256);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package ru.practicum.ewm.stats.serialization.action;
+
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.ewm.stats.serialization.AvroDeserializer;
+import ru.practicum.ewm.stats.serialization.AvroSerializer;
+
+import java.nio.ByteBuffer;
+
+public class AvroUserActionCodec implements UserActionCodec {
+    public static final String NAME = "avro";
+
+    private final AvroSerializer serializer = new AvroSerializer();
+    private final AvroDeserializer<UserActionAvro> deserializer =
+            new AvroDeserializer<>(UserActionAvro.getClassSchema());
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(String topic, UserActionAvro userAction) {
+        return serializer.serialize(topic, userAction);
+    }
+
+    @Override
+    public UserActionAvro decode(String topic, ByteBuffer data) {
+        return deserializer.deserialize(topic, null, data);
+    }
+}
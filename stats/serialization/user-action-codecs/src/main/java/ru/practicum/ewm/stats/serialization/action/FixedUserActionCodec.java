@@ -0,0 +1,57 @@
+package ru.practicum.ewm.stats.serialization.action;
+
+import org.apache.kafka.common.errors.SerializationException;
+import ru.practicum.ewm.stats.avro.ActionTypeAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * Фиксированный формат на 25 байт (big-endian): userId (8), eventId (8), код действия (1),
+ * временная метка в миллисекундах (8). Точность метки совпадает с timestamp-millis схемы Avro.
+ */
+public class FixedUserActionCodec implements UserActionCodec {
+    public static final String NAME = "fixed";
+    public static final int SIZE = 25;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(String topic, UserActionAvro userAction) {
+        byte[] data = new byte[SIZE];
+        ByteBuffer.wrap(data)
+                .putLong(userAction.getUserId())
+                .putLong(userAction.getEventId())
+                .put(switch (userAction.getActionType()) { // коды не зависят от порядка констант перечисления
+                    case VIEW -> (byte) 0;
+                    case REGISTER -> (byte) 1;
+                    case LIKE -> (byte) 2;
+                })
+                .putLong(userAction.getTimestamp().toEpochMilli());
+        return data;
+    }
+
+    @Override
+    public UserActionAvro decode(String topic, ByteBuffer data) {
+        if (data.remaining() != SIZE) {
+            throw new SerializationException("Ошибка десериализации данных из топика [" + topic
+                    + "]: ожидалось " + SIZE + " байт, получено " + data.remaining());
+        }
+        int position = data.position();
+        return UserActionAvro.newBuilder()
+                .setUserId(data.getLong(position))
+                .setEventId(data.getLong(position + 8))
+                .setActionType(switch (data.get(position + 16)) {
+                    case 0 -> ActionTypeAvro.VIEW;
+                    case 1 -> ActionTypeAvro.REGISTER;
+                    case 2 -> ActionTypeAvro.LIKE;
+                    default -> throw new SerializationException("Нет такого действия: " + data.get(position + 16));
+                })
+                .setTimestamp(Instant.ofEpochMilli(data.getLong(position + 17)))
+                .build();
+    }
+}
@@ -0,0 +1,60 @@
+package ru.practicum.ewm.stats.serialization.action;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import org.apache.kafka.common.errors.SerializationException;
+import ru.practicum.ewm.stats.avro.ActionTypeAvro;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+import ru.practicum.grpc.stats.action.ActionTypeProto;
+import ru.practicum.grpc.stats.action.UserActionProto;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+public class ProtobufUserActionCodec implements UserActionCodec {
+    public static final String NAME = "protobuf";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(String topic, UserActionAvro userAction) {
+        Instant timestamp = userAction.getTimestamp();
+        return UserActionProto.newBuilder()
+                .setUserId(userAction.getUserId())
+                .setEventId(userAction.getEventId())
+                .setActionType(switch (userAction.getActionType()) {
+                    case VIEW -> ActionTypeProto.ACTION_VIEW;
+                    case REGISTER -> ActionTypeProto.ACTION_REGISTER;
+                    case LIKE -> ActionTypeProto.ACTION_LIKE;
+                })
+                .setTimestamp(Timestamp.newBuilder()
+                        .setSeconds(timestamp.getEpochSecond())
+                        .setNanos(timestamp.getNano()))
+                .build()
+                .toByteArray();
+    }
+
+    @Override
+    public UserActionAvro decode(String topic, ByteBuffer data) {
+        try {
+            UserActionProto userAction = UserActionProto.parseFrom(data.duplicate());
+            return UserActionAvro.newBuilder()
+                    .setUserId(userAction.getUserId())
+                    .setEventId(userAction.getEventId())
+                    .setActionType(switch (userAction.getActionType()) {
+                        case ACTION_VIEW -> ActionTypeAvro.VIEW;
+                        case ACTION_REGISTER -> ActionTypeAvro.REGISTER;
+                        case ACTION_LIKE -> ActionTypeAvro.LIKE;
+                        case UNRECOGNIZED -> throw new SerializationException("Нет такого действия");
+                    })
+                    .setTimestamp(Instant.ofEpochSecond(userAction.getTimestamp().getSeconds(),
+                            userAction.getTimestamp().getNanos()))
+                    .build();
+        } catch (InvalidProtocolBufferException e) {
+            throw new SerializationException("Ошибка десериализации данных из топика [" + topic + "]", e);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ru.practicum.ewm.stats.serialization.action;
+
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Формат значения записи с действием пользователя. Имя формата передаётся в заголовке value-codec,
+ * поэтому в одном топике могут одновременно лежать записи разных форматов.
+ */
+public interface UserActionCodec {
+    String name();
+
+    byte[] encode(String topic, UserActionAvro userAction);
+
+    UserActionAvro decode(String topic, ByteBuffer data);
+}
@@ -0,0 +1,29 @@
+package ru.practicum.ewm.stats.serialization.action;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Десериализатор действий пользователя: формат выбирается по заголовку value-codec каждой записи.
+ */
+public class UserActionCodecDeserializer implements Deserializer<UserActionAvro> {
+    private final UserActionCodecs codecs = new UserActionCodecs();
+
+    @Override
+    public UserActionAvro deserialize(String topic, byte[] data) {
+        return deserialize(topic, null, data);
+    }
+
+    @Override
+    public UserActionAvro deserialize(String topic, Headers headers, byte[] data) {
+        return data == null ? null : codecs.get(headers).decode(topic, ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public UserActionAvro deserialize(String topic, Headers headers, ByteBuffer data) {
+        return data == null ? null : codecs.get(headers).decode(topic, data);
+    }
+}
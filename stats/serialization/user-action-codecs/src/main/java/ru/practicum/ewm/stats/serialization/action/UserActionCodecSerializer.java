@@ -0,0 +1,41 @@
+package ru.practicum.ewm.stats.serialization.action;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Serializer;
+import ru.practicum.ewm.stats.avro.UserActionAvro;
+
+import java.util.Map;
+
+/**
+ * Сериализатор действий пользователя в формате из настройки producer user.action.codec (по умолчанию Avro).
+ * Имя формата записывается в заголовок записи.
+ */
+public class UserActionCodecSerializer implements Serializer<UserActionAvro> {
+    public static final String CODEC_CONFIG = "user.action.codec";
+
+    private final UserActionCodecs codecs = new UserActionCodecs();
+    private UserActionCodec codec = codecs.get(AvroUserActionCodec.NAME);
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        Object name = configs.get(CODEC_CONFIG);
+        if (name != null) {
+            codec = codecs.get(name.toString());
+        }
+    }
+
+    @Override
+    public byte[] serialize(String topic, UserActionAvro data) { // без заголовков возможен только Avro
+        return data == null ? null : codecs.get(AvroUserActionCodec.NAME).encode(topic, data);
+    }
+
+    @Override
+    public byte[] serialize(String topic, Headers headers, UserActionAvro data) {
+        if (data == null) {
+            return null;
+        }
+        headers.remove(UserActionCodecs.CODEC_HEADER);
+        headers.add(UserActionCodecs.CODEC_HEADER, codecs.headerValue(codec));
+        return codec.encode(topic, data);
+    }
+}
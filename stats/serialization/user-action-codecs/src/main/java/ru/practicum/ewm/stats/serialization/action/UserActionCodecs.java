@@ -0,0 +1,53 @@
+package ru.practicum.ewm.stats.serialization.action;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Набор форматов действий пользователя. Запись без заголовка value-codec считается записанной в Avro.
+ */
+public class UserActionCodecs {
+    public static final String CODEC_HEADER = "value-codec";
+
+    private final Map<String, UserActionCodec> codecs = List.of(
+                    new AvroUserActionCodec(),
+                    new ProtobufUserActionCodec(),
+                    new FixedUserActionCodec())
+            .stream()
+            .collect(Collectors.toMap(UserActionCodec::name, Function.identity()));
+    private final Map<String, byte[]> headerValues = codecs.keySet().stream()
+            .collect(Collectors.toMap(Function.identity(), name -> name.getBytes(StandardCharsets.UTF_8)));
+
+    public UserActionCodec get(String name) {
+        UserActionCodec codec = codecs.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("Неизвестный формат действий пользователя: " + name
+                    + ", доступны " + codecs.keySet());
+        }
+        return codec;
+    }
+
+    public UserActionCodec get(Headers headers) {
+        Header header = headers == null ? null : headers.lastHeader(CODEC_HEADER);
+        if (header == null) {
+            return codecs.get(AvroUserActionCodec.NAME);
+        }
+        String name = new String(header.value(), StandardCharsets.UTF_8);
+        UserActionCodec codec = codecs.get(name);
+        if (codec == null) {
+            throw new SerializationException("Неизвестный формат действий пользователя в заголовке: " + name);
+        }
+        return codec;
+    }
+
+    public byte[] headerValue(UserActionCodec codec) {
+        return headerValues.get(codec.name());
+    }
+}
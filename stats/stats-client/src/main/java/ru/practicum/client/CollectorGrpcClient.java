@@ -3,39 +3,238 @@ package ru.practicum.client;
 
 import com.google.protobuf.Empty;
 import com.google.protobuf.Timestamp;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import net.devh.boot.grpc.client.inject.GrpcClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import ru.practicum.grpc.stats.action.ActionTypeProto;
 import ru.practicum.grpc.stats.action.UserActionProto;
 import ru.practicum.grpc.stats.service.UserActionControllerGrpc;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Отправляет действия пользователей в Collector.
+ * В пакетном режиме действия копятся в буфере и уходят потоковым вызовом CollectUserActions,
+ * когда набирается batch-size действий или проходит flush-interval-ms; при переполнении буфера
+ * действие отправляется унарным вызовом в потоке вызывающего.
+ * Пачка, отклонённая с временной ошибкой (UNAVAILABLE, RESOURCE_EXHAUSTED, DEADLINE_EXCEEDED, ABORTED),
+ * повторяется с растущей паузой, а после batch-retries попыток её действия отправляются по одному унарным вызовом.
+ * Унарный вызов ждёт ответа не дольше unary-timeout-ms, а поштучная отправка пачки - не дольше fallback-budget-ms,
+ * чтобы недоступный Collector не останавливал поток отправки; не уложившиеся в бюджет действия отбрасываются.
+ * Повтор безопасен: вес пары пользователь-мероприятие только растёт, поэтому дубль действия ничего не меняет.
+ * Действия отбрасываются только при постоянной ошибке, их число видно в метрике collector.client.user-actions.
+ */
 @Service
 @Slf4j
 public class CollectorGrpcClient {
+    private static final Set<Status.Code> RETRIABLE_CODES = Set.of(Status.Code.UNAVAILABLE,
+            Status.Code.RESOURCE_EXHAUSTED, Status.Code.DEADLINE_EXCEEDED, Status.Code.ABORTED);
+
     @GrpcClient("collector")
     public UserActionControllerGrpc.UserActionControllerBlockingStub client;
+    @GrpcClient("collector")
+    UserActionControllerGrpc.UserActionControllerStub asyncClient;
+
+    @Value("${collector.client.batching-enabled:true}")
+    private boolean batchingEnabled;
+    @Value("${collector.client.batch-size:500}")
+    private int batchSize;
+    @Value("${collector.client.flush-interval-ms:50}")
+    private long flushIntervalMs;
+    @Value("${collector.client.buffer-capacity:100000}")
+    private int bufferCapacity;
+    @Value("${collector.client.batch-timeout-ms:5000}")
+    private long batchTimeoutMs;
+    @Value("${collector.client.batch-retries:3}")
+    private int batchRetries;
+    @Value("${collector.client.retry-backoff-ms:100}")
+    private long retryBackoffMs; // пауза перед первым повтором, дальше удваивается
+    @Value("${collector.client.unary-timeout-ms:1000}")
+    private long unaryTimeoutMs;
+    @Value("${collector.client.fallback-budget-ms:5000}")
+    private long fallbackBudgetMs;
+
+    private final MeterRegistry meterRegistry;
+
+    private BlockingQueue<UserActionProto> buffer; // null, если пакетный режим выключен
+    private ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    public CollectorGrpcClient(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void init() {
+        if (!batchingEnabled) {
+            return;
+        }
+        buffer = new ArrayBlockingQueue<>(bufferCapacity);
+        flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "collector-client-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(batchTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(); // отправляем остаток буфера
+    }
 
     public void collectUserAction(long userId, long eventId, ActionTypeProto action, Instant instant) {
+        UserActionProto userAction = UserActionProto.newBuilder()
+                .setUserId(userId)
+                .setEventId(eventId)
+                .setActionType(action)
+                .setTimestamp(Timestamp.newBuilder()
+                        .setSeconds(instant.getEpochSecond())
+                        .setNanos(instant.getNano()).build())
+                .build();
+
+        if (buffer == null || !buffer.offer(userAction)) { // переполненный буфер замедляет вызывающего
+            sendUserAction(userAction);
+            return;
+        }
+        if (buffer.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException ignored) { // остановка: остаток отправит shutdown
+            }
+        }
+    }
+
+    private void sendUserAction(UserActionProto userAction) {
         try {
-            UserActionProto userAction = UserActionProto.newBuilder()
-                    .setUserId(userId)
-                    .setEventId(eventId)
-                    .setActionType(action)
-                    .setTimestamp(Timestamp.newBuilder()
-                            .setSeconds(instant.getEpochSecond())
-                            .setNanos(instant.getNano()).build())
-                    .build();
-            Empty response = client.collectUserAction(userAction);
+            Empty response = client.withDeadlineAfter(unaryTimeoutMs, TimeUnit.MILLISECONDS)
+                    .collectUserAction(userAction);
             log.info("Действие {} успешно отправлено", userAction);
         } catch (StatusRuntimeException e) {
             log.error("Ошибка gRPC вызова: код={}, описание={}",
                     e.getStatus().getCode(), e.getStatus().getDescription(), e);
+            countDropped(e.getStatus().getCode(), 1);
         } catch (Exception e) {
             log.error("Неожиданная ошибка при отправке действия", e);
+            countDropped(Status.Code.UNKNOWN, 1);
+        }
+    }
+
+    private void flush() {
+        flushRequested.set(false);
+        try {
+            List<UserActionProto> batch = new ArrayList<>(batchSize);
+            while (buffer.drainTo(batch, batchSize) > 0) {
+                sendBatchWithRetries(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) { // исключение отменило бы периодическую отправку
+            log.error("Неожиданная ошибка при отправке пачки действий", e);
+        }
+    }
+
+    private void sendBatchWithRetries(List<UserActionProto> batch) throws InterruptedException {
+        long backoffMs = retryBackoffMs;
+        for (int attempt = 0; ; attempt++) {
+            Status status = sendBatch(batch);
+            if (status.isOk()) {
+                return;
+            }
+            if (!RETRIABLE_CODES.contains(status.getCode())) {
+                log.error("Пачка из {} действий отброшена: код={}", batch.size(), status.getCode());
+                countDropped(status.getCode(), batch.size());
+                return;
+            }
+            if (attempt >= batchRetries) {
+                break;
+            }
+            log.warn("Повтор отправки пачки из {} действий через {} мс: код={}", batch.size(), backoffMs,
+                    status.getCode());
+            TimeUnit.MILLISECONDS.sleep(backoffMs);
+            backoffMs *= 2;
+        }
+
+        log.warn("Пачка из {} действий не отправлена после {} повторов, действия отправляются по одному",
+                batch.size(), batchRetries);
+        long deadline = System.currentTimeMillis() + fallbackBudgetMs;
+        for (int i = 0; i < batch.size(); i++) {
+            if (System.currentTimeMillis() >= deadline) {
+                log.error("Бюджет поштучной отправки исчерпан, отброшено действий: {}", batch.size() - i);
+                countDropped(Status.Code.DEADLINE_EXCEEDED, batch.size() - i);
+                return;
+            }
+            sendUserAction(batch.get(i));
+        }
+    }
+
+    private void countDropped(Status.Code code, int count) {
+        meterRegistry.counter("collector.client.user-actions", "result", "dropped", "code", code.name())
+                .increment(count);
+    }
+
+    private Status sendBatch(List<UserActionProto> batch) throws InterruptedException { // статус ответа Collector
+        int size = batch.size();
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Status> result = new AtomicReference<>();
+        StreamObserver<UserActionProto> requestObserver = asyncClient
+                .withDeadlineAfter(batchTimeoutMs, TimeUnit.MILLISECONDS)
+                .collectUserActions(new StreamObserver<>() {
+                    @Override
+                    public void onNext(Empty response) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        Status status = Status.fromThrowable(t);
+                        log.error("Ошибка gRPC вызова при отправке {} действий: код={}, описание={}",
+                                size, status.getCode(), status.getDescription(), t);
+                        result.set(status);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        log.debug("Пачка из {} действий успешно отправлена", size);
+                        result.set(Status.OK);
+                        done.countDown();
+                    }
+                });
+
+        batch.forEach(requestObserver::onNext);
+        requestObserver.onCompleted();
+        if (!done.await(batchTimeoutMs, TimeUnit.MILLISECONDS)) { // следующая пачка уходит после ответа на предыдущую
+            return Status.DEADLINE_EXCEEDED;
         }
+        return result.get();
     }
-}
\ No newline at end of file
+}